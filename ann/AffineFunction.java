@@ -1,7 +1,13 @@
 package apple_lib.ann;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
+import apple_lib.function.MatrixKernels;
+import apple_lib.function.ScalarFunction;
+import apple_lib.function.SparseBatch;
 import apple_lib.function.VectorFunction;
 
 /**
@@ -16,6 +22,22 @@ public class AffineFunction extends VectorFunction {
 
 	/* Parameters */
 	protected double[][] parameters;
+
+	/* Items handled between cancellation checks in the batched kernels */
+	protected static final int ROW_BLOCK = 64;
+
+	/* Smallest batch for which the backward pass copies the weights into transposed layout */
+	protected static final int TRANSPOSE_THRESHOLD = 16;
+
+	/* Whether batched backward passes use a transposed copy of the weights */
+	protected boolean transposed_backward;
+
+	/* Float copy of one block of rows of the current batch on each thread, used in single-precision mode */
+	protected static final ThreadLocal<float[]> single_block = ThreadLocal.withInitial(() -> new float[0]);
+
+	/* Single-precision copy of the weights used by passes in single-precision mode. Null in double-precision mode. The
+	   double-precision parameters remain the master copy that the optimizer updates. */
+	protected float[][] single_weights;
 	
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
@@ -23,29 +45,57 @@ public class AffineFunction extends VectorFunction {
 	 * Basic constructor. Fixes the input and output sizes.
 	 */
 	public AffineFunction(int inputs, int outputs) {
+		this(inputs, outputs, true);
+	}
+
+	/**
+	 * Allocates the parameters, only drawing random weights if asked. Used when the weights are about to be overwritten.
+	 */
+	protected AffineFunction(int inputs, int outputs, boolean randomize) {
 		input_count = inputs;
 		output_count = outputs;
 
 		parameters = new double[input_count + 1][output_count];
 
-		Random rng = new Random();
-		double std = Math.sqrt(1 / (double) inputs);
-		for(int input = 0; input < input_count; input++) {
-			for(int output = 0; output < output_count; output++) {
-				parameters[input][output] = rng.nextGaussian(0, std);
+		if(randomize) {
+			Random rng = new Random();
+			double std = Math.sqrt(1 / (double) inputs);
+			for(int input = 0; input < input_count; input++) {
+				for(int output = 0; output < output_count; output++) {
+					parameters[input][output] = rng.nextGaussian(0, std);
+				}
 			}
 		}
+
+		transposed_backward = true;
 	}
 
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
 
 	@Override
 	public double[] pass(double[] input) {
-		double[] output = new double[output_count];
-		for(int out = 0; out < output_count; out++) {
-			output[out] = parameters[input_count][out];
+		return pass(input, new double[output_count]);
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output) {
+		System.arraycopy(parameters[input_count], 0, output, 0, output_count);
+		float[][] single = single_weights;
+		if(single != null) {
 			for(int in = 0; in < input_count; in++) {
-				output[out] += input[in] * parameters[in][out];
+				double value = input[in];
+				float[] row = single[in];
+				for(int out = 0; out < output_count; out++) {
+					output[out] += value * row[out];
+				}
+			}
+			return output;
+		}
+		for(int in = 0; in < input_count; in++) {
+			double value = input[in];
+			double[] row = parameters[in];
+			for(int out = 0; out < output_count; out++) {
+				output[out] += value * row[out];
 			}
 		}
 		return output;
@@ -62,5 +112,421 @@ public class AffineFunction extends VectorFunction {
 		return output;
 	}
 
-}
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		double[] output = new double[input_count];
+		for(int in = 0; in < input_count; in++) {
+			double[] row = parameters[in];
+			double total = 0;
+			for(int out = 0; out < output_count; out++) {
+				total += row[out] * upstream[out];
+			}
+			output[in] = total;
+		}
+		return output;
+	}
+
+	@Override
+	public double[][] vjp(double[] input, double[][] upstream) {
+		// The Jacobian is the transposed weight matrix, so no dense copy is needed
+		double[][] output = new double[upstream.length][];
+		for(int row = 0; row < upstream.length; row++) {
+			output[row] = vjp(input, upstream[row]);
+		}
+		return output;
+	}
+
+	@Override
+	public double[] jvp(double[] input, double[] tangent) {
+		double[] output = new double[output_count];
+		for(int in = 0; in < input_count; in++) {
+			double value = tangent[in];
+			double[] row = parameters[in];
+			for(int out = 0; out < output_count; out++) {
+				output[out] += value * row[out];
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public int output_size(int input_size) {
+		return output_count;
+	}
+
+	/**
+	 * Chooses whether batched backward passes copy the weights into output-major layout first. The copy lets every product
+	 * stream through contiguous rows. Without it, each entry is a dot product over a row of the weights. 
+	 */
+	public void set_transposed_backward(boolean transposed) {
+		transposed_backward = transposed;
+	}
+
+	/**
+	 * Switches passes and input derivatives between double and single precision. In single precision, products use a
+	 * float copy of the weights and are summed in floats over blocks of inputs before being added to double outputs. The
+	 * bias, the parameter gradients and the optimizer state stay in double precision.
+	 */
+	public void set_single_precision(boolean enabled) {
+		if(!enabled) {
+			single_weights = null;
+			return;
+		}
+		float[][] single = new float[input_count][output_count];
+		for(int in = 0; in < input_count; in++) {
+			double[] row = parameters[in];
+			for(int out = 0; out < output_count; out++) {
+				single[in][out] = (float) row[out];
+			}
+		}
+		single_weights = single;
+	}
+
+	/**
+	 * Sets the precision of every affine function in a network
+	 */
+	public static void set_single_precision(VectorFunction network, boolean enabled) {
+		if(network instanceof AffineFunction) ((AffineFunction) network).set_single_precision(enabled);
+		if(network instanceof ResidualBlock) set_single_precision(((ResidualBlock) network).function, enabled);
+		if(network instanceof FunctionSeries) {
+			for(VectorFunction layer : ((FunctionSeries) network).functions) {
+				set_single_precision(layer, enabled);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if passes use single precision
+	 */
+	public boolean is_single_precision() {
+		return single_weights != null;
+	}
+
+	/**
+	 * Copies a row of updated parameters into the single-precision weights. Called by optimizers after every update.
+	 */
+	protected void refresh_single_precision(int row) {
+		float[][] single = single_weights;
+		if(single == null || row >= input_count) return;
+		double[] source = parameters[row];
+		float[] destination = single[row];
+		for(int out = 0; out < output_count; out++) {
+			destination[out] = (float) source[out];
+		}
+	}
+
+	/**
+	 * Copies the weights into output-major layout. Row out holds the weight of every input for that output.
+	 */
+	public double[][] transposed_weights() {
+		double[][] transposed = new double[output_count][input_count];
+		for(int in = 0; in < input_count; in++) {
+			double[] row = parameters[in];
+			for(int out = 0; out < output_count; out++) {
+				transposed[out][in] = row[out];
+			}
+		}
+		return transposed;
+	}
+
+	/**
+	 * Returns the float buffer of the calling thread, grown to at least the given length. A unit uses it for its whole run
+	 * and never runs other work meanwhile, so nothing else on the thread writes to it.
+	 */
+	protected static float[] single_buffer(int length) {
+		float[] buffer = single_block.get();
+		if(buffer.length < length) {
+			buffer = new float[length];
+			single_block.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Compares single and double precision on Gaussian inputs. First times a random affine function of the given size.
+	 * Then trains the same small classifier in both modes for the given number of full-batch steps, from the same weights
+	 * and with labels from a fixed random teacher.
+	 *
+	 * Returns, and prints:
+	 *  - the largest difference of the batched pass and of the batched vector-Jacobian product, relative to their largest
+	 *    values;
+	 *  - the items per second of the pass and of the product, in double and then single precision;
+	 *  - the final training loss and accuracy, and the training steps per second, in double and then single precision.
+	 */
+	public static double[] compare_precision(int inputs, int outputs, int items, int repeats, int steps) {
+		Random random = new Random(1);
+		Batch batch = new Batch(items, inputs), upstream = new Batch(items, outputs);
+		for(int i = 0; i < batch.data.length; i++) batch.data[i] = random.nextGaussian();
+		for(int i = 0; i < upstream.data.length; i++) upstream.data[i] = random.nextGaussian();
+		AffineFunction function = new AffineFunction(inputs, outputs);
+
+		Batch[] passes = { new Batch(items, outputs), new Batch(items, outputs) };
+		Batch[] products = { new Batch(items, inputs), new Batch(items, inputs) };
+		double[] seconds = new double[4];
+		for(int mode = 0; mode < 2; mode++) {
+			function.set_single_precision(mode == 1);
+			// The first round only warms up
+			for(int repeat = 0; repeat <= repeats; repeat++) {
+				long start = System.nanoTime();
+				function.pass_all(batch, passes[mode]);
+				long middle = System.nanoTime();
+				function.vjp_all(batch, upstream, products[mode]);
+				long end = System.nanoTime();
+				if(repeat == 0) continue;
+				seconds[mode] += (middle - start) * 1e-9;
+				seconds[2 + mode] += (end - middle) * 1e-9;
+			}
+		}
+		function.set_single_precision(false);
+
+		// Labels are the quadrant of each input under two fixed random directions
+		int classes = 4;
+		double[][] teacher = new double[2][inputs];
+		for(double[] direction : teacher) {
+			for(int in = 0; in < inputs; in++) direction[in] = random.nextGaussian();
+		}
+		int[] labels = new int[items];
+		for(int item = 0; item < items; item++) {
+			for(int d = 0; d < 2; d++) {
+				double projection = 0;
+				for(int in = 0; in < inputs; in++) projection += teacher[d][in] * batch.get(item, in);
+				if(projection > 0) labels[item] += 1 << d;
+			}
+		}
+		AffineFunction first = new AffineFunction(inputs, outputs), second = new AffineFunction(outputs, classes);
+		// The first round trains throwaway copies of both modes for a few steps to warm up
+		double[][] training = new double[2][3];
+		for(int round = -2; round < 2; round++) {
+			int mode = round & 1, round_steps = round < 0 ? Math.min(steps, 10) : steps;
+			AffineFunction hidden = new AffineFunction(inputs, outputs, false), last = new AffineFunction(outputs, classes, false);
+			for(int row = 0; row <= inputs; row++) hidden.parameters[row] = first.parameters[row].clone();
+			for(int row = 0; row <= outputs; row++) last.parameters[row] = second.parameters[row].clone();
+			FunctionSeries classifier = new FunctionSeries(hidden, ScalarFunction.tanh, last, VectorFunction.softmax);
+			set_single_precision(classifier, mode == 1);
+			SoftmaxClassifierOptimizer loss = new SoftmaxClassifierOptimizer(FunctionOptimizer.create_optimizer(classifier));
+
+			long start = System.nanoTime();
+			for(int step = 0; step < round_steps; step++) {
+				loss.update_parameters(batch, labels);
+			}
+			double elapsed = (System.nanoTime() - start) * 1e-9;
+			if(round < 0) continue;
+
+			Batch probabilities = classifier.pass_all(batch);
+			double cross_entropy = 0;
+			int correct = 0;
+			for(int item = 0; item < items; item++) {
+				int best = 0;
+				for(int c = 1; c < classes; c++) {
+					if(probabilities.get(item, c) > probabilities.get(item, best)) best = c;
+				}
+				if(best == labels[item]) correct++;
+				cross_entropy -= Math.log(Math.max(probabilities.get(item, labels[item]), Double.MIN_NORMAL));
+			}
+			training[mode] = new double[] { cross_entropy / items, correct / (double) items, steps / elapsed };
+		}
+
+		double[] result = { Batch.relative_difference(passes[0], passes[1]),
+			Batch.relative_difference(products[0], products[1]), items * repeats / seconds[0], items * repeats / seconds[1],
+			items * repeats / seconds[2], items * repeats / seconds[3], training[0][0], training[0][1], training[0][2], training[1][0], training[1][1],
+			training[1][2] };
+		System.out.println(String.format("%d x %d: pass %.0f -> %.0f items/s (%.2fx, error %.1e), vjp %.0f -> %.0f items/s "
+			+ "(%.2fx, error %.1e)", inputs, outputs, result[2], result[3], result[3] / result[2], result[0], result[4],
+			result[5], result[5] / result[4], result[1]));
+		System.out.println(String.format("%d x %d training: double loss %.8f accuracy %.3f at %.1f steps/s, single loss %.8f "
+			+ "accuracy %.3f at %.1f steps/s", inputs, outputs, result[6], result[7], result[8], result[9], result[10],
+			result[11]));
+		return result;
+	}
+
+	/**
+	 * Copies single-precision weights into output-major layout
+	 */
+	protected float[][] transposed_single_weights(float[][] single) {
+		float[][] transposed = new float[output_count][input_count];
+		for(int in = 0; in < input_count; in++) {
+			float[] row = single[in];
+			for(int out = 0; out < output_count; out++) {
+				transposed[out][in] = row[out];
+			}
+		}
+		return transposed;
+	}
+
+	@Override
+	public double[][] pass_all(double[][] inputs) {
+		// Items of different lengths cannot share a batch, so they are passed one by one as before batches existed
+		if(!Batch.is_uniform(inputs)) return pass_each(inputs);
+		return pass_all(Batch.of(inputs)).to_array();
+	}
+
+	@Override
+	public double[][] vjp_all(double[][] inputs, double[][] upstream) {
+		if(!Batch.is_uniform(inputs) || !Batch.is_uniform(upstream)) return super.vjp_all(inputs, upstream);
+		return vjp_all(Batch.of(inputs), Batch.of(upstream)).to_array();
+	}
+
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		if(!inputs.is_contiguous() || !outputs.is_contiguous()) return super.pass_all(inputs, outputs);
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
 
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new BatchForwardUnit(inputs.data, outputs.data, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Passes sparse inputs. Only the weight rows of non-zero inputs are read, so the cost scales with the number of
+	 * entries instead of the input size.
+	 */
+	@Override
+	public Batch pass_all(SparseBatch inputs) {
+		if(inputs.columns != input_count) throw new RuntimeException("Expected " + input_count + " inputs");
+		Batch outputs = new Batch(inputs.rows, output_count);
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new SparseForwardUnit(inputs, outputs.data, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	@Override
+	public Batch vjp_all(Batch inputs, Batch upstream, Batch outputs) {
+		if(!upstream.is_contiguous() || !outputs.is_contiguous()) return super.vjp_all(inputs, upstream, outputs);
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+
+		// A transposed copy of the weights turns the products into the same streaming kernel as the forward pass
+		float[][] single = single_weights;
+		boolean transpose = transposed_backward && N >= TRANSPOSE_THRESHOLD;
+		double[][] transposed = transpose && single == null ? transposed_weights() : null;
+		float[][] single_transposed = transpose && single != null ? transposed_single_weights(single) : null;
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new BatchBackwardUnit(upstream.data, outputs.data, transposed, single_transposed, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	// MULTITHREADING //
+
+	protected class BatchForwardUnit implements Runnable {
+		double[] inputs, outputs;
+		int start, stop;
+		BatchForwardUnit(double[] in, double[] out, int begin, int end) {
+			inputs = in;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			float[][] single = single_weights;
+			float[] single_inputs = single == null ? null : single_buffer(ROW_BLOCK * input_count);
+
+			// Start from the bias and accumulate the weights in cache-sized blocks of rows
+			for(int block = start; block < stop; block += ROW_BLOCK) {
+				ComputePool.checkpoint();
+				int block_end = Math.min(block + ROW_BLOCK, stop);
+				for(int item = block; item < block_end; item++) {
+					System.arraycopy(parameters[input_count], 0, outputs, item * output_count, output_count);
+				}
+				if(single != null) {
+					for(int i = block * input_count; i < block_end * input_count; i++) {
+						single_inputs[i - block * input_count] = (float) inputs[i];
+					}
+					MatrixKernels.multiply(single_inputs, single, outputs, input_count, output_count, block, block_end);
+				} else {
+					MatrixKernels.multiply(inputs, parameters, outputs, input_count, output_count, block, block_end);
+				}
+			}
+		}
+	}
+
+	protected class SparseForwardUnit implements Runnable {
+		SparseBatch inputs;
+		double[] outputs;
+		int start, stop;
+		SparseForwardUnit(SparseBatch in, double[] out, int begin, int end) {
+			inputs = in;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			for(int item = start; item < stop; item++) {
+				if((item - start) % ROW_BLOCK == 0) ComputePool.checkpoint();
+				int base = item * output_count;
+				System.arraycopy(parameters[input_count], 0, outputs, base, output_count);
+				for(int entry = inputs.row_start[item]; entry < inputs.row_start[item + 1]; entry++) {
+					double value = inputs.values[entry];
+					double[] row = parameters[inputs.indices[entry]];
+					for(int out = 0; out < output_count; out++) {
+						outputs[base + out] += value * row[out];
+					}
+				}
+			}
+		}
+	}
+
+	protected class BatchBackwardUnit implements Runnable {
+		double[] upstream, outputs;
+		double[][] transposed;
+		float[][] single_transposed;
+		int start, stop;
+		BatchBackwardUnit(double[] deriv, double[] out, double[][] weights, float[][] single_weights, int begin, int end) {
+			upstream = deriv;
+			outputs = out;
+			transposed = weights;
+			single_transposed = single_weights;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			float[] single_upstream = single_transposed == null ? null : single_buffer(ROW_BLOCK * output_count);
+			for(int block = start; block < stop; block += ROW_BLOCK) {
+				ComputePool.checkpoint();
+				int block_end = Math.min(block + ROW_BLOCK, stop);
+				if(single_transposed != null) {
+					for(int i = block * output_count; i < block_end * output_count; i++) {
+						single_upstream[i - block * output_count] = (float) upstream[i];
+					}
+					Arrays.fill(outputs, block * input_count, block_end * input_count, 0);
+					MatrixKernels.multiply(single_upstream, single_transposed, outputs, output_count, input_count, block,
+						block_end);
+				} else if(transposed != null) {
+					Arrays.fill(outputs, block * input_count, block_end * input_count, 0);
+					MatrixKernels.multiply(upstream, transposed, outputs, output_count, input_count, block, block_end);
+				} else {
+					// Rows of the weight matrix are the rows of the transposed Jacobian
+					MatrixKernels.multiply_transposed(upstream, parameters, outputs, output_count, input_count, block, block_end);
+				}
+			}
+		}
+	}
+
+}
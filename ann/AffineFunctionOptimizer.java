@@ -1,8 +1,13 @@
 package apple_lib.ann;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
+import apple_lib.function.MatrixKernels;
+import apple_lib.function.SparseBatch;
 
 /**
  * Optimizer for an affine function. 
@@ -11,8 +16,18 @@ public class AffineFunctionOptimizer extends FunctionOptimizer {
 
 	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
 
-	/* Optimizers */
-	protected DoubleOptimizer[][] optimizers;
+	/* Optimizer of every weight and bias. Entry (in, out) is stored at in * output_count + out. */
+	protected BlockOptimizer parameter_optimizer;
+
+	/* Parameter gradient. Reused from step to step. */
+	protected double[][] gradient;
+
+	/* Flattened gradient exchanged with other replicas, and its reduction */
+	protected double[] exchange;
+	protected Future<?> exchange_future;
+
+	/* Weight rows that received a gradient from the current sparse batch */
+	protected boolean[] touched;
 
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
@@ -22,89 +37,197 @@ public class AffineFunctionOptimizer extends FunctionOptimizer {
 	public AffineFunctionOptimizer(AffineFunction target) {
 		super(target);
 
-		optimizers = new DoubleOptimizer[target.input_count + 1][target.output_count];
-		super.optimizers = new DoubleOptimizer[(target.input_count + 1) * target.output_count];
-		int index = 0;
-		for(int in = 0; in <= target.input_count; in++) {
-			for(int out = 0; out < target.output_count; out++) {
-				optimizers[in][out] = new DoubleOptimizer();
-				super.optimizers[index++] = optimizers[in][out];
-			}
-		}
+		parameter_optimizer = new BlockOptimizer((target.input_count + 1) * target.output_count);
+		block_optimizers = new BlockOptimizer[] { parameter_optimizer };
+		gradient = new double[target.input_count + 1][target.output_count];
 	}
 
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
 
 	@Override
 	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
-		int N = inputs.length;
+		return update_parameters(Batch.of(inputs), Batch.of(deriv)).to_array();
+	}
+
+	@Override
+	public Batch update_parameters(Batch inputs, Batch deriv) {
+		if(!inputs.is_contiguous() || !deriv.is_contiguous()) {
+			return update_parameters(inputs.contiguous(), deriv.contiguous());
+		}
 		AffineFunction function = (AffineFunction) target;
 
-		// Determine derivatives with respect to inputs and parameters
-		double[][] input_deriv = new double[N][function.input_count];
-		int thread_count = Math.min(Runtime.getRuntime().availableProcessors(), inputs.length);
-		UpdateUnit[] units = new UpdateUnit[thread_count];
+		// Derivatives with respect to the inputs must use the weights from before the update
+		Batch input_deriv = function.vjp_all(inputs, deriv);
+
+		// Each unit owns a block of parameter rows. It sums the gradient of its rows over the whole batch and applies the
+		// optimizer to them, so there is no reduction and nothing runs serially.
+		int P = function.input_count + 1;
+		// Once the step has started, every parameter is updated, so cancellation is only checked before it
+		ComputePool.checkpoint();
+		parameter_optimizer.step();
+		int thread_count = ComputePool.thread_count(P);
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (P * thread) / thread_count;
+			int end = (P * (thread + 1)) / thread_count;
 
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
+			units[thread] = new GradientUnit(inputs, deriv, start, end);
+		}
+		ComputePool.execute_to_completion(units);
+		if(all_reduce != null) exchange_gradient();
+		finish_update();
+
+		return input_deriv;
+	}
+
+	/**
+	 * Updates using sparse inputs. Only the weight rows of inputs that are non-zero somewhere in the batch receive a
+	 * gradient, and only those rows and the bias are updated. For SGD this is the same as the dense update. Strategies
+	 * with moments leave the moments of untouched rows as they are until those inputs appear again.
+	 */
+	@Override
+	public void update_parameters(SparseBatch inputs, Batch deriv) {
+		// Averaging across replicas needs the full gradient
+		if(all_reduce != null) {
+			update_parameters(inputs.to_batch(), deriv);
+			return;
+		}
+		AffineFunction function = (AffineFunction) target;
+		if(inputs.columns != function.input_count) throw new RuntimeException("Expected " + function.input_count + " inputs");
+		deriv = deriv.contiguous();
+		if(touched == null) touched = new boolean[function.input_count];
+
+		// Each unit owns a block of parameter rows and only handles the entries that fall into it
+		int P = function.input_count + 1;
+		// Once the step has started, every parameter is updated, so cancellation is only checked before it
+		ComputePool.checkpoint();
+		parameter_optimizer.step();
+		int thread_count = Math.min(P, ComputePool.thread_count(inputs.nonzeros()));
+		Runnable[] units = new Runnable[thread_count];
 		for(int thread = 0; thread < thread_count; thread++) {
-			int start = (N * thread) / thread_count;
-			int end = (N * (thread + 1)) / thread_count;
+			int start = (P * thread) / thread_count;
+			int end = (P * (thread + 1)) / thread_count;
 
-			units[thread] = new UpdateUnit(input_deriv, inputs, deriv, start, end);
-			service.execute(units[thread]);
+			units[thread] = new SparseGradientUnit(inputs, deriv, start, end);
 		}
+		ComputePool.execute_to_completion(units);
+	}
+
+	/**
+	 * Queues the gradient for averaging with the other replicas. The update is applied once the reduction finishes.
+	 */
+	protected void exchange_gradient() {
+		AffineFunction function = (AffineFunction) target;
+		int P = function.input_count + 1, O = function.output_count;
 
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+		// The buffers of an earlier exchange may still be in flight if this layer was updated twice within one update
+		if(exchange_future != null && !exchange_future.isDone()) all_reduce.flush();
+		if(exchange == null) exchange = new double[P * O];
+		for(int row = 0; row < P; row++) {
+			System.arraycopy(gradient[row], 0, exchange, row * O, O);
 		}
 
-		for(int in = 0; in <= function.input_count; in++) {
-			for(int out = 0; out < function.output_count; out++) {
-				double total = 0;
-				for(UpdateUnit unit : units) {
-					total += unit.update[in][out];
+		exchange_future = all_reduce.submit(exchange, () -> {
+			double scale = 1.0 / all_reduce.size;
+			for(int row = 0; row < P; row++) {
+				double[] gradient_row = gradient[row];
+				for(int out = 0; out < O; out++) {
+					gradient_row[out] = exchange[row * O + out] * scale;
 				}
-				function.parameters[in][out] += optimizers[in][out].calculate_update(total);
+				parameter_optimizer.update(function.parameters[row], gradient_row, row * O, 0, O);
+				function.refresh_single_precision(row);
 			}
-		}
+		});
+	}
 
-		return input_deriv;
+	@Override
+	protected void collect_parameters(ArrayList<double[]> arrays) {
+		for(double[] row : ((AffineFunction) target).parameters) {
+			arrays.add(row);
+		}
 	}
 
 	// MULTITHREADING //
-	
-	protected class UpdateUnit implements Runnable {
-		double[][] inputs, derivatives;
-		double[][] update, backpropagate;
+
+	protected class GradientUnit implements Runnable {
+		Batch inputs, derivatives;
 		int begin, end;
-		UpdateUnit(double[][] backprop, double[][] in, double[][] out, int start, int stop) {
-			AffineFunction function = (AffineFunction) target;
-			backpropagate = backprop;
+		GradientUnit(Batch in, Batch out, int start, int stop) {
 			inputs = in;
 			derivatives = out;
 			begin = start;
 			end = stop;
-
-			update = new double[function.input_count + 1][function.output_count];
 		}
 		@Override
 		public void run() {
 			AffineFunction function = (AffineFunction) target;
+			int I = function.input_count, O = function.output_count, N = inputs.rows;
+			for(int row = begin; row < end; row++) {
+				Arrays.fill(gradient[row], 0);
+			}
+
+			// Weight rows are the transposed inputs times the derivatives. The bias row is the sum of the derivatives.
+			MatrixKernels.multiply_left_transposed(inputs.data, I, derivatives.data, O, N, gradient, begin, Math.min(end, I));
+			if(end > I) MatrixKernels.sum_rows(derivatives.data, O, N, gradient[I]);
 
-			for(int item = begin; item < end; item++) {
-				for(int out = 0; out < function.output_count; out++) {
-					for(int in = 0; in < function.input_count; in++) {
-						update[in][out] += derivatives[item][out] * inputs[item][in];
-						backpropagate[item][in] += derivatives[item][out] * function.parameters[in][out];
+			// Replicas apply the update once gradients have been averaged
+			if(all_reduce != null) return;
+			for(int row = begin; row < end; row++) {
+				parameter_optimizer.update(function.parameters[row], gradient[row], row * O, 0, O);
+				function.refresh_single_precision(row);
+			}
+		}
+	}
+
+	protected class SparseGradientUnit implements Runnable {
+		SparseBatch inputs;
+		Batch derivatives;
+		int begin, end;
+		SparseGradientUnit(SparseBatch in, Batch out, int start, int stop) {
+			inputs = in;
+			derivatives = out;
+			begin = start;
+			end = stop;
+		}
+		@Override
+		public void run() {
+			AffineFunction function = (AffineFunction) target;
+			int I = function.input_count, O = function.output_count, N = inputs.rows;
+			int last = Math.min(end, I);
+			int[] rows = new int[Math.min(end - begin, inputs.nonzeros() + 1)];
+			int count = 0;
+
+			// Gradient rows are cleared the first time an input appears in the batch
+			for(int item = 0; item < N; item++) {
+				int base = item * O;
+				for(int entry = inputs.row_start[item]; entry < inputs.row_start[item + 1]; entry++) {
+					int row = inputs.indices[entry];
+					if(row < begin || row >= last) continue;
+					double[] gradient_row = gradient[row];
+					if(!touched[row]) {
+						touched[row] = true;
+						Arrays.fill(gradient_row, 0);
+						rows[count++] = row;
+					}
+					double value = inputs.values[entry];
+					for(int out = 0; out < O; out++) {
+						gradient_row[out] += value * derivatives.data[base + out];
 					}
-					update[function.input_count][out] += derivatives[item][out];
 				}
 			}
+			if(end > I) {
+				Arrays.fill(gradient[I], 0);
+				MatrixKernels.sum_rows(derivatives.data, O, N, gradient[I]);
+				rows[count++] = I;
+			}
+
+			for(int index = 0; index < count; index++) {
+				int row = rows[index];
+				if(row < I) touched[row] = false;
+				parameter_optimizer.update(function.parameters[row], gradient[row], row * O, 0, O);
+				function.refresh_single_precision(row);
+			}
 		}
 	}
 
 }
-
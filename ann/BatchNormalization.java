@@ -1,14 +1,19 @@
 package apple_lib.ann;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
+import apple_lib.function.InferenceBatcher;
+import apple_lib.function.ScalarFunction;
+import apple_lib.function.StreamingPass;
 import apple_lib.function.VectorFunction;
 
 /**
- * Batch normalization layer. 
+ * Batch normalization layer. Batched passes normalize with the statistics of the batch, which are computed in one pass over
+ * blocks of rows and kept for the backward pass. Single passes use the running statistics. 
  */
 public class BatchNormalization extends VectorFunction {
 
@@ -24,6 +29,13 @@ public class BatchNormalization extends VectorFunction {
 	/* Standard deviation numerical stability */
 	protected double std_sqrt = 0.00000001;
 	protected double std_div = 0.00000001;
+
+	/* Statistics of the last batched pass. Taken by the optimizer if it is given the same inputs. Only holds a weak
+	   reference to those inputs, so they are not kept alive by a pass that is never followed by an update. */
+	protected volatile Statistics last_statistics;
+
+	/* Rows merged into the statistics at a time */
+	protected static final int ROW_BLOCK = 64;
 	
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
@@ -46,11 +58,49 @@ public class BatchNormalization extends VectorFunction {
 		}
 	}
 
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Trains a small network with batch normalization for a few steps, then checks that serving it in batches and streaming
+	 * it in chunks give the same outputs as single passes. Returns false if any output differs. 
+	 */
+	public static boolean check() {
+		Random random = new Random(1);
+		VectorFunction network = new FunctionSeries(new AffineFunction(5, 8), new BatchNormalization(8), ScalarFunction.tanh,
+			new ResidualBlock(new FunctionSeries(new AffineFunction(8, 8), new BatchNormalization(8))), new AffineFunction(8, 3));
+		FunctionOptimizer optimizer = FunctionOptimizer.create_optimizer(network);
+		Batch inputs = new Batch(40, 5), deriv = new Batch(40, 3);
+		for(int step = 0; step < 20; step++) {
+			for(int i = 0; i < inputs.data.length; i++) {
+				inputs.data[i] = 3 * random.nextGaussian() + 1;
+			}
+			for(int i = 0; i < deriv.data.length; i++) {
+				deriv.data[i] = random.nextGaussian();
+			}
+			optimizer.update_parameters(inputs, deriv);
+		}
+
+		double[][] items = inputs.to_array();
+		Batch outputs = network.infer_all(inputs);
+		double error = 0;
+		for(int item = 0; item < items.length; item++) {
+			error = Math.max(error, Batch.max_difference(network.pass(items[item]), outputs.row(item)));
+		}
+		boolean valid = error <= 1e-12;
+		if(!valid) System.err.println(String.format("Batched inference differs from single passes: %e", error));
+		valid &= InferenceBatcher.check(network, items, 1e-12);
+		return valid & StreamingPass.check(network, items, 1e-12);
+	}
+
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
 
 	@Override
 	public double[] pass(double[] input) {
-		double[] output = new double[dimensions];
+		return pass(input, new double[dimensions]);
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output) {
 		for(int dim = 0; dim < dimensions; dim++) {
 			output[dim] = output_std[dim] * (input[dim] - running_mean[dim]) / Math.sqrt(running_variance[dim] + std_div) + output_mean[dim];
 		}
@@ -66,28 +116,135 @@ public class BatchNormalization extends VectorFunction {
 		return output;
 	}
 
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		double[] output = new double[dimensions];
+		for(int dim = 0; dim < dimensions; dim++) {
+			output[dim] = upstream[dim] * output_std[dim] / Math.sqrt(running_variance[dim] + std_div);
+		}
+		return output;
+	}
+
+	@Override
+	public double[][] vjp(double[] input, double[][] upstream) {
+		double[][] output = new double[upstream.length][];
+		for(int row = 0; row < upstream.length; row++) {
+			output[row] = vjp(input, upstream[row]);
+		}
+		return output;
+	}
+
+	@Override
+	public double[] jvp(double[] input, double[] tangent) {
+		// The Jacobian is diagonal
+		return vjp(input, tangent);
+	}
+
 	@Override
 	public double[][] pass_all(double[][] inputs) {
-		double[][] outputs = new double[inputs.length][dimensions];
+		// Items of different lengths cannot share a batch, so they are passed one by one as before batches existed
+		if(!Batch.is_uniform(inputs)) return pass_each(inputs);
+		Batch outputs = new Batch(inputs.length, dimensions);
+		normalize(Batch.of(inputs), outputs, inputs);
+		return outputs.to_array();
+	}
+
+	@Override
+	public int output_size(int input_size) {
+		return dimensions;
+	}
+
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		if(outputs.is_contiguous()) return normalize(inputs.contiguous(), outputs, inputs);
+
+		Batch result = normalize(inputs.contiguous(), new Batch(inputs.rows, dimensions), inputs);
+		for(int item = 0; item < result.rows; item++) {
+			outputs.set_row(item, result.data, item * dimensions);
+		}
+		return outputs;
+	}
 
-		int thread_count = Math.min(Runtime.getRuntime().availableProcessors(), dimensions);
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
+	/**
+	 * Normalizes with the running statistics, like pass, so every output is independent of the rest of the batch
+	 */
+	@Override
+	public Batch infer_all(Batch inputs, Batch outputs) {
+		double[] scale = new double[dimensions], shift = new double[dimensions];
+		for(int dim = 0; dim < dimensions; dim++) {
+			scale[dim] = output_std[dim] / Math.sqrt(running_variance[dim] + std_div);
+			shift[dim] = output_mean[dim] - scale[dim] * running_mean[dim];
+		}
+
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new InferenceUnit(inputs, outputs, scale, shift, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Normalizes a contiguous batch with its own statistics and keeps them for the backward pass of the given source
+	 */
+	protected Batch normalize(Batch inputs, Batch outputs, Object source) {
+		Statistics statistics = new Statistics(source, inputs.rows, dimensions);
+
+		int thread_count = ComputePool.thread_count((long) dimensions * inputs.rows);
+		thread_count = Math.min(thread_count, dimensions);
+		Runnable[] units = new Runnable[thread_count];
 		for(int thread = 0; thread < thread_count; thread++) {
 			int start = (dimensions * thread) / thread_count;
 			int end = (dimensions * (thread + 1)) / thread_count;
 
-			ForwardPassUnit unit = new ForwardPassUnit(inputs, outputs, start, end);
-			service.execute(unit);
+			units[thread] = new BatchForwardUnit(inputs.data, outputs.data, inputs.rows, statistics, start, end);
 		}
+		ComputePool.execute(units);
+
+		last_statistics = statistics;
+		return outputs;
+	}
+
+	/**
+	 * Computes the statistics of a contiguous batch without normalizing it
+	 */
+	protected Statistics statistics(Batch inputs) {
+		Statistics statistics = new Statistics(inputs, inputs.rows, dimensions);
+
+		int thread_count = ComputePool.thread_count((long) dimensions * inputs.rows);
+		thread_count = Math.min(thread_count, dimensions);
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (dimensions * thread) / thread_count;
+			int end = (dimensions * (thread + 1)) / thread_count;
 
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+			units[thread] = new BatchForwardUnit(inputs.data, null, inputs.rows, statistics, start, end);
 		}
+		ComputePool.execute(units);
 
-		return outputs;
+		return statistics;
+	}
+
+	/**
+	 * Returns the statistics of the last batched pass if it was over the given inputs, and forgets them. Returns null
+	 * otherwise. Inputs are matched by identity, so they must not be modified between the pass and the update. 
+	 */
+	protected Statistics take_statistics(Object source, int rows) {
+		Statistics statistics = last_statistics;
+		if(statistics == null) return null;
+		Object inputs = statistics.source.get();
+
+		// Statistics of inputs that have been collected can never be taken
+		if(inputs == null) last_statistics = null;
+		if(inputs != source || statistics.rows != rows) return null;
+		last_statistics = null;
+		return statistics;
 	}
 
 	@Override
@@ -95,36 +252,122 @@ public class BatchNormalization extends VectorFunction {
 		throw new RuntimeException("Cannot be represented");
 	}
 
+	/**
+	 * Mean, variance and inverse standard deviation of every dimension over one batch. The variance includes std_div. 
+	 */
+	protected static class Statistics {
+		final WeakReference<Object> source;
+		final int rows;
+		final double[] mean, variance, inverse_std;
+		Statistics(Object inputs, int items, int dimensions) {
+			source = new WeakReference<>(inputs);
+			rows = items;
+			mean = new double[dimensions];
+			variance = new double[dimensions];
+			inverse_std = new double[dimensions];
+		}
+	}
+
 	// MULTITHREADING //
-	
-	protected class ForwardPassUnit implements Runnable {
-		double[][] inputs, outputs;
+
+	protected class InferenceUnit implements Runnable {
+		Batch inputs, outputs;
+		double[] scale, shift;
 		int start, stop;
-		ForwardPassUnit(double[][] in, double[][] out, int begin, int end) {
+		InferenceUnit(Batch in, Batch out, double[] factor, double[] offset, int begin, int end) {
 			inputs = in;
 			outputs = out;
+			scale = factor;
+			shift = offset;
 			start = begin;
 			stop = end;
 		}
 		@Override
 		public void run() {
-			int N = inputs.length;
-			for(int dim = start; dim < stop; dim++) {
-				double mean = 0, second = 0;
-				for(double[] item : inputs) {
-					mean += item[dim];
-					second += item[dim] * item[dim];
+			for(int item = start; item < stop; item++) {
+				if((item - start) % ROW_BLOCK == 0) ComputePool.checkpoint();
+				for(int dim = 0; dim < dimensions; dim++) {
+					outputs.set(item, dim, scale[dim] * inputs.get(item, dim) + shift[dim]);
 				}
-				mean /= N;
-				double std = Math.sqrt(second / N - mean * mean + std_div);
+			}
+		}
+	}
+
+	protected class BatchForwardUnit implements Runnable {
+		double[] inputs, outputs;
+		Statistics statistics;
+		int N, start, stop;
+		BatchForwardUnit(double[] in, double[] out, int items, Statistics stats, int begin, int end) {
+			inputs = in;
+			outputs = out;
+			N = items;
+			statistics = stats;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			int width = stop - start;
+			double[] mean = new double[width], squares = new double[width];
+			double[] block_mean = new double[width], block_squares = new double[width];
 
-				for(int item = 0; item < N; item++) {
-					outputs[item][dim] = output_std[dim] * (inputs[item][dim] - mean) / std + output_mean[dim];
+			// Welford's update, one block of rows at a time. The block is summed around its own mean while it is still
+			// in cache, then merged into the running statistics. 
+			int count = 0;
+			for(int block = 0; block < N; block += ROW_BLOCK) {
+				ComputePool.checkpoint();
+				int block_end = Math.min(block + ROW_BLOCK, N);
+				int size = block_end - block;
+
+				Arrays.fill(block_mean, 0);
+				Arrays.fill(block_squares, 0);
+				for(int item = block; item < block_end; item++) {
+					int base = item * dimensions + start;
+					for(int dim = 0; dim < width; dim++) {
+						block_mean[dim] += inputs[base + dim];
+					}
+				}
+				for(int dim = 0; dim < width; dim++) {
+					block_mean[dim] /= size;
+				}
+				for(int item = block; item < block_end; item++) {
+					int base = item * dimensions + start;
+					for(int dim = 0; dim < width; dim++) {
+						double shift = inputs[base + dim] - block_mean[dim];
+						block_squares[dim] += shift * shift;
+					}
+				}
+
+				int total = count + size;
+				double weight = (double) size / total, cross = (double) count * size / total;
+				for(int dim = 0; dim < width; dim++) {
+					double delta = block_mean[dim] - mean[dim];
+					mean[dim] += delta * weight;
+					squares[dim] += block_squares[dim] + delta * delta * cross;
+				}
+				count = total;
+			}
+
+			double[] scale = new double[width], shift = new double[width];
+			for(int dim = 0; dim < width; dim++) {
+				double variance = squares[dim] / N + std_div;
+				double inverse_std = 1 / Math.sqrt(variance);
+				statistics.mean[start + dim] = mean[dim];
+				statistics.variance[start + dim] = variance;
+				statistics.inverse_std[start + dim] = inverse_std;
+				scale[dim] = output_std[start + dim] * inverse_std;
+				shift[dim] = output_mean[start + dim] - scale[dim] * mean[dim];
+			}
+			if(outputs == null) return;
+
+			for(int item = 0; item < N; item++) {
+				if(item % ROW_BLOCK == 0) ComputePool.checkpoint();
+				int base = item * dimensions + start;
+				for(int dim = 0; dim < width; dim++) {
+					outputs[base + dim] = scale[dim] * inputs[base + dim] + shift[dim];
 				}
 			}
 		}
 	}
 
 }
-
-
@@ -1,8 +1,10 @@
 package apple_lib.ann;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
 
 /**
  * Optimizer for batch normalization
@@ -11,9 +13,15 @@ public class BatchNormalizationOptimizer extends FunctionOptimizer {
 
 	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
 
-	/* Optimizers */
-	protected DoubleOptimizer[] mean_optimizers;
-	protected DoubleOptimizer[] std_optimizers;
+	/* Optimizer of the output means followed by the output deviations */
+	protected BlockOptimizer parameter_optimizer;
+
+	/* Derivatives of the output means and deviations. Reused from step to step. */
+	protected double[] mean_gradient, std_gradient;
+
+	/* Flattened gradient exchanged with other replicas, and its reduction */
+	protected double[] exchange;
+	protected Future<?> exchange_future;
 
 	/* Exponential average */
 	protected double mean_exp, variance_exp;
@@ -29,17 +37,10 @@ public class BatchNormalizationOptimizer extends FunctionOptimizer {
 		mean_exp = 0.9;
 		variance_exp = 0.9;
 
-		mean_optimizers = new DoubleOptimizer[target.dimensions];
-		std_optimizers = new DoubleOptimizer[target.dimensions];
-		super.optimizers = new DoubleOptimizer[2 * target.dimensions];
-		int index = 0;
-		for(int i = 0; i < target.dimensions; i++) {
-			mean_optimizers[i] = new DoubleOptimizer();
-			std_optimizers[i] = new DoubleOptimizer();
-
-			super.optimizers[index++] = mean_optimizers[i];
-			super.optimizers[index++] = std_optimizers[i];
-		}
+		parameter_optimizer = new BlockOptimizer(2 * target.dimensions);
+		block_optimizers = new BlockOptimizer[] { parameter_optimizer };
+		mean_gradient = new double[target.dimensions];
+		std_gradient = new double[target.dimensions];
 	}
 
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
@@ -47,86 +48,146 @@ public class BatchNormalizationOptimizer extends FunctionOptimizer {
 	@Override
 	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
 		BatchNormalization func = (BatchNormalization) target;
-		double[][] outputs = new double[inputs.length][func.dimensions];
+		return update_parameters(Batch.of(inputs), Batch.of(deriv), func.take_statistics(inputs, inputs.length)).to_array();
+	}
+
+	@Override
+	public Batch update_parameters(Batch inputs, Batch deriv) {
+		BatchNormalization func = (BatchNormalization) target;
+		return update_parameters(inputs.contiguous(), deriv.contiguous(), func.take_statistics(inputs, inputs.rows));
+	}
 
-		int thread_count = Math.min(Runtime.getRuntime().availableProcessors(), func.dimensions);
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
+	/**
+	 * Updates using contiguous batches. Reuses the statistics of the forward pass if they are given, and computes them
+	 * otherwise. 
+	 */
+	protected Batch update_parameters(Batch inputs, Batch deriv, BatchNormalization.Statistics statistics) {
+		BatchNormalization func = (BatchNormalization) target;
+		if(statistics == null) statistics = func.statistics(inputs);
+		Batch outputs = new Batch(inputs.rows, func.dimensions);
+
+		// Dimensions are independent, so each unit updates the parameters of its own dimensions
+		// Once the step has started, every parameter is updated, so cancellation is only checked before it
+		ComputePool.checkpoint();
+		parameter_optimizer.step();
+		int thread_count = ComputePool.thread_count((long) func.dimensions * inputs.rows);
+		thread_count = Math.min(thread_count, func.dimensions);
+		Runnable[] units = new Runnable[thread_count];
 		for(int thread = 0; thread < thread_count; thread++) {
 			int start = (func.dimensions * thread) / thread_count;
 			int end = (func.dimensions * (thread + 1)) / thread_count;
 
-			BackpropagationUnit unit = new BackpropagationUnit(inputs, deriv, outputs, start, end);
-			service.execute(unit);
-		}
-
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+			units[thread] = new BackpropagationUnit(inputs.data, deriv.data, outputs.data, inputs.rows, statistics, start, end);
 		}
+		ComputePool.execute_to_completion(units);
+		if(all_reduce != null) exchange_gradient();
+		finish_update();
 
 		return outputs;
 	}
 
+	/**
+	 * Queues the gradient for averaging with the other replicas. The update is applied once the reduction finishes. The
+	 * running statistics are averaged in the same exchange, so replicas keep identical statistics. Each replica still
+	 * normalizes with the statistics of its own shard; the running variance becomes the mean of the shard variances.
+	 */
+	protected void exchange_gradient() {
+		BatchNormalization func = (BatchNormalization) target;
+		int D = func.dimensions;
+
+		// The buffers of an earlier exchange may still be in flight if this layer was updated twice within one update
+		if(exchange_future != null && !exchange_future.isDone()) all_reduce.flush();
+		if(exchange == null) exchange = new double[4 * D];
+		System.arraycopy(mean_gradient, 0, exchange, 0, D);
+		System.arraycopy(std_gradient, 0, exchange, D, D);
+		System.arraycopy(func.running_mean, 0, exchange, 2 * D, D);
+		System.arraycopy(func.running_variance, 0, exchange, 3 * D, D);
+
+		exchange_future = all_reduce.submit(exchange, () -> {
+			double scale = 1.0 / all_reduce.size;
+			for(int dim = 0; dim < D; dim++) {
+				mean_gradient[dim] = exchange[dim] * scale;
+				std_gradient[dim] = exchange[D + dim] * scale;
+				func.running_mean[dim] = exchange[2 * D + dim] * scale;
+				func.running_variance[dim] = exchange[3 * D + dim] * scale;
+			}
+			parameter_optimizer.update(func.output_mean, mean_gradient, 0, 0, D);
+			parameter_optimizer.update(func.output_std, std_gradient, D, 0, D);
+		});
+	}
+
+	@Override
+	protected void collect_parameters(ArrayList<double[]> arrays) {
+		BatchNormalization func = (BatchNormalization) target;
+		arrays.add(func.output_mean);
+		arrays.add(func.output_std);
+		arrays.add(func.running_mean);
+		arrays.add(func.running_variance);
+	}
+
 	// MULTITHREADING //
 	
 	protected class BackpropagationUnit implements Runnable {
-		double[][] inputs, out_derivs, in_derivs;
-		int start, stop;
-		BackpropagationUnit(double[][] in, double[][] derivatives, double[][] outputs, int begin, int end) {
+		double[] inputs, out_derivs, in_derivs;
+		BatchNormalization.Statistics statistics;
+		int N, start, stop;
+		BackpropagationUnit(double[] in, double[] derivatives, double[] outputs, int items, BatchNormalization.Statistics stats,
+				int begin, int end) {
 			inputs = in;
 			out_derivs = derivatives;
 			in_derivs = outputs;
+			N = items;
+			statistics = stats;
 			start = begin;
 			stop = end;
 		}
 		@Override
 		public void run() {
 			BatchNormalization func = (BatchNormalization) target;
-			int N = inputs.length;
-			double[] shift = new double[N];
-			for(int dim = start; dim < stop; dim++) {
-				double mean = 0, second = 0;
-				for(double[] item : inputs) {
-					mean += item[dim];
-					second += item[dim] * item[dim];
+			int D = func.dimensions, width = stop - start;
+			double[] mean = new double[width], inverse_std = new double[width];
+			System.arraycopy(statistics.mean, start, mean, 0, width);
+			System.arraycopy(statistics.inverse_std, start, inverse_std, 0, width);
+
+			// Derivatives of the output means and deviations
+			double[] deriv_sum = new double[width], normalized_sum = new double[width];
+			for(int item = 0; item < N; item++) {
+				int base = item * D + start;
+				for(int dim = 0; dim < width; dim++) {
+					double deriv = out_derivs[base + dim];
+					deriv_sum[dim] += deriv;
+					normalized_sum[dim] += deriv * (inputs[base + dim] - mean[dim]) * inverse_std[dim];
 				}
-				mean /= N;
-				double variance = second / N - mean * mean + func.std_div;
-				double std = Math.sqrt(variance);
-
-				double output_std_deriv = 0, output_mean_deriv = 0;
-				double variance_deriv = 0, mean_deriv = 0, shift_sum = 0;
-				for(int item = 0; item < N; item++) {
-					shift[item] = inputs[item][dim] - mean;
-					double shift_deriv = out_derivs[item][dim] * func.output_std[dim];
-
-					output_std_deriv += out_derivs[item][dim] * shift[item];
-					output_mean_deriv += out_derivs[item][dim];
-
-					variance_deriv -= shift_deriv * shift[item];
-					mean_deriv -= shift_deriv;
-					in_derivs[item][dim] = shift_deriv / std;
-
-					shift_sum += inputs[item][dim];
-				}
-				shift_sum -= N * mean;
-
-				variance_deriv /= N * variance * std;
-				mean_deriv = mean_deriv / std - variance_deriv * shift_sum;
+			}
 
-				for(int item = 0; item < N; item++) {
-					in_derivs[item][dim] += variance_deriv * shift[item] + mean_deriv / N;
+			// The input derivative is the scaled output derivative minus its projection onto the constant and normalized
+			// directions, which the mean and deviation of the batch remove
+			double[] scale = new double[width], deriv_mean = new double[width], normalized_mean = new double[width];
+			for(int dim = 0; dim < width; dim++) {
+				scale[dim] = func.output_std[start + dim] * inverse_std[dim];
+				deriv_mean[dim] = deriv_sum[dim] / N;
+				normalized_mean[dim] = normalized_sum[dim] / N;
+			}
+			for(int item = 0; item < N; item++) {
+				int base = item * D + start;
+				for(int dim = 0; dim < width; dim++) {
+					double normalized = (inputs[base + dim] - mean[dim]) * inverse_std[dim];
+					in_derivs[base + dim] = scale[dim] * (out_derivs[base + dim] - deriv_mean[dim] - normalized * normalized_mean[dim]);
 				}
+			}
 
-				func.output_mean[dim] += mean_optimizers[dim].calculate_update(output_mean_deriv);
-				func.output_std[dim] += std_optimizers[dim].calculate_update(output_std_deriv);
-				func.running_mean[dim] = mean_exp * func.running_mean[dim] + (1 - mean_exp) * mean;
-				func.running_variance[dim] = variance_exp * func.running_variance[dim] + (1 - variance_exp) * variance;
+			for(int dim = start; dim < stop; dim++) {
+				mean_gradient[dim] = deriv_sum[dim - start];
+				std_gradient[dim] = normalized_sum[dim - start];
+				func.running_mean[dim] = mean_exp * func.running_mean[dim] + (1 - mean_exp) * statistics.mean[dim];
+				func.running_variance[dim] = variance_exp * func.running_variance[dim] + (1 - variance_exp) * statistics.variance[dim];
 			}
+
+			// Replicas apply the update once gradients have been averaged
+			if(all_reduce != null) return;
+			parameter_optimizer.update(func.output_mean, mean_gradient, 0, start, stop);
+			parameter_optimizer.update(func.output_std, std_gradient, func.dimensions, start, stop);
 		}
 	}
 
 }
-
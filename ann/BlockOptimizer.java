@@ -0,0 +1,194 @@
+package apple_lib.ann;
+
+/**
+ * Simulates the trajectories of a block of double values that are always updated together. The optimizer state of every
+ * value is stored in flat arrays, and each update is a single sweep over the block. Follows the same strategies and
+ * defaults as DoubleOptimizer.
+ */
+public class BlockOptimizer {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Number of values */
+	public final int size;
+
+	/* Learning rate */
+	protected double learning_rate;
+	protected int training_time;
+
+	/* Training strategy */
+	protected DoubleOptimizer.Strategy optimizer;
+
+	/* SGD+momentum parameters */
+	protected double sgdm_decay;
+
+	/* ADAGrad parameters */
+	protected double adagrad_protection;
+
+	/* RMSProp parameters */
+	protected double rms_protection, rms_decay;
+
+	/* Adam parameters */
+	protected double adam_first_bias, adam_second_bias, adam_protection;
+
+	/* Bias corrections of the current Adam step */
+	protected double first_correction, second_correction;
+
+	/* Update parameters. Only allocated once training starts and only if the strategy needs them. */
+	protected double[] first_moment, second_moment;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Fixes the number of values.
+	 */
+	public BlockOptimizer(int size) {
+		this.size = size;
+		optimizer = DoubleOptimizer.Strategy.Adam;
+
+		learning_rate = 0.001;
+		training_time = 0;
+
+		sgdm_decay = 0.99;
+
+		adagrad_protection = 0.01;
+
+		rms_protection = 0.01;
+		rms_decay = 0.9;
+
+		adam_first_bias = 0.9;
+		adam_second_bias = 0.99;
+		adam_protection = 0.01;
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Sets the optimization strategy to Adam if training has not started yet
+	 */
+	public void use_adam(double first_moment_bias, double second_moment_bias, double protection) {
+		if(training_time == 0) {
+			optimizer = DoubleOptimizer.Strategy.Adam;
+			adam_first_bias = first_moment_bias;
+			adam_second_bias = second_moment_bias;
+			adam_protection = protection;
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy to RMSProp if training has not started yet
+	 */
+	public void use_rmsprop(double protection, double decay) {
+		if(training_time == 0) {
+			optimizer = DoubleOptimizer.Strategy.RMSProp;
+			rms_protection = protection;
+			rms_decay = decay;
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy to ADAGrad if training has not started yet
+	 */
+	public void use_adagrad(double protection) {
+		if(training_time == 0) {
+			optimizer = DoubleOptimizer.Strategy.ADAGrad;
+			adagrad_protection = protection;
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy to SGD+momentum if training has not started yet
+	 */
+	public void use_sgd_momentum(double decay) {
+		if(training_time == 0) {
+			optimizer = DoubleOptimizer.Strategy.SGD_momentum;
+			sgdm_decay = decay;
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy to stochastic gradient descent if training has not started yet
+	 */
+	public void use_sgd() {
+		if(training_time == 0) {
+			optimizer = DoubleOptimizer.Strategy.SGD;
+		}
+	}
+
+	/**
+	 * Sets the learning rate if training has not started yet
+	 */
+	public void set_learning_rate(double val) {
+		if(training_time == 0) {
+			learning_rate = val;
+		}
+	}
+
+	/**
+	 * Starts a new training step. Must be called once before the block is updated, after which disjoint ranges may be
+	 * updated from different threads.
+	 */
+	public void step() {
+		if(training_time == 0) {
+			boolean first = optimizer == DoubleOptimizer.Strategy.SGD_momentum || optimizer == DoubleOptimizer.Strategy.Adam;
+			boolean second = optimizer != DoubleOptimizer.Strategy.SGD && optimizer != DoubleOptimizer.Strategy.SGD_momentum;
+			if(first) first_moment = new double[size];
+			if(second) second_moment = new double[size];
+		}
+		training_time++;
+		first_correction = 1 - Math.pow(adam_first_bias, training_time);
+		second_correction = 1 - Math.pow(adam_second_bias, training_time);
+	}
+
+	/**
+	 * Adds the update for each derivative in [start, end) to the matching parameter. The state of entry i is stored at
+	 * position state_offset + i of the block.
+	 */
+	public void update(double[] parameters, double[] deriv, int state_offset, int start, int end) {
+		double lr = learning_rate;
+		int shift = state_offset;
+		switch (optimizer) {
+			case SGD:
+			for(int i = start; i < end; i++) {
+				parameters[i] -= lr * deriv[i];
+			}
+			break;
+
+			case SGD_momentum:
+			for(int i = start; i < end; i++) {
+				double moment = sgdm_decay * first_moment[shift + i] + deriv[i];
+				first_moment[shift + i] = moment;
+				parameters[i] -= lr * moment;
+			}
+			break;
+
+			case ADAGrad:
+			for(int i = start; i < end; i++) {
+				double moment = second_moment[shift + i] + deriv[i] * deriv[i];
+				second_moment[shift + i] = moment;
+				parameters[i] -= lr * deriv[i] / (Math.sqrt(moment) + adagrad_protection);
+			}
+			break;
+
+			case RMSProp:
+			for(int i = start; i < end; i++) {
+				double moment = rms_decay * second_moment[shift + i] + (1 - rms_decay) * deriv[i] * deriv[i];
+				second_moment[shift + i] = moment;
+				parameters[i] -= lr * deriv[i] / (Math.sqrt(moment) + rms_protection);
+			}
+			break;
+
+			case Adam:
+			double first_scale = 1 / first_correction, second_scale = 1 / second_correction;
+			for(int i = start; i < end; i++) {
+				double first = adam_first_bias * first_moment[shift + i] + (1 - adam_first_bias) * deriv[i];
+				double second = adam_second_bias * second_moment[shift + i] + (1 - adam_second_bias) * deriv[i] * deriv[i];
+				first_moment[shift + i] = first;
+				second_moment[shift + i] = second;
+				parameters[i] -= lr * first * first_scale / (Math.sqrt(second * second_scale) + adam_protection);
+			}
+			break;
+		}
+	}
+
+}
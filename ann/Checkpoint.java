@@ -0,0 +1,507 @@
+package apple_lib.ann;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ScalarFunction;
+import apple_lib.function.VectorFunction;
+
+/**
+ * Binary checkpoint of a network and, optionally, the state of its optimizer. A file has three parts, all little-endian:
+ *
+ *  - A fixed header with a magic number, the format version and the position and length of the other two parts.
+ *  - The structure: the layer graph, the sizes and settings of every layer and optimizer, and the positions of their arrays.
+ *  - The data: every parameter, running statistic and optimizer moment as raw doubles, aligned to a page boundary.
+ *
+ * Files are read through a memory map, so the data is copied straight from the page cache into the arrays of the new layers.
+ * Layers that can be saved are affine functions, batch normalization, series, residual blocks and the built-in activations.
+ * Since version 2, the single-precision mode of affine functions, the checkpoint interval of series optimizers and the
+ * running average rates of batch normalization optimizers are saved too. Float weights are rebuilt from the doubles on
+ * load. The all-reduce of data-parallel training is not saved and has to be set again.
+ */
+public class Checkpoint {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Loaded network */
+	public final VectorFunction function;
+
+	/* Loaded optimizer. Null if the checkpoint only holds the network. */
+	public final FunctionOptimizer optimizer;
+
+	/* File layout */
+	protected static final int MAGIC = 0x434C5041, VERSION = 2, HEADER_SIZE = 48, DATA_ALIGNMENT = 4096;
+	protected static final int HAS_OPTIMIZER = 1;
+
+	/* Layer tags */
+	protected static final int SERIES = 1, RESIDUAL = 2, AFFINE = 3, BATCH_NORM = 4, BUILT_IN = 5;
+
+	/* Built-in functions are saved by name */
+	protected static final String[] BUILT_IN_NAMES = { "ReLU", "softplus", "tanh", "logistic", "swish", "loglin", "softmax" };
+	protected static final VectorFunction[] BUILT_IN_FUNCTIONS = { ScalarFunction.ReLU, ScalarFunction.softplus,
+		ScalarFunction.tanh, ScalarFunction.logistic, ScalarFunction.swish, ScalarFunction.loglin, VectorFunction.softmax };
+
+	/* Number of doubles in each mapped window of the data. Keeps every window below the 2GB limit of a single map. */
+	protected static final int WINDOW = 1 << 27;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	protected Checkpoint(VectorFunction func, FunctionOptimizer opt) {
+		function = func;
+		optimizer = opt;
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Saves a network without optimizer state
+	 */
+	public static void save(Path path, VectorFunction function) {
+		save(path, function, null);
+	}
+
+	/**
+	 * Saves a network and the state of its optimizer, so training can resume exactly where it stopped. The file is written
+	 * next to the target and then moved over it, so an existing checkpoint is never left half written.
+	 */
+	public static void save(Path path, VectorFunction function, FunctionOptimizer optimizer) {
+		if(optimizer != null && optimizer.target != function) throw new RuntimeException("Optimizer does not train this function");
+		Writer writer = new Writer();
+		writer.write_function(function);
+		if(optimizer != null) writer.write_optimizer(optimizer);
+
+		ByteBuffer structure = writer.structure;
+		structure.flip();
+		long data_offset = align(HEADER_SIZE + structure.limit());
+		long data_length = writer.data_position * 8;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(optimizer == null ? 0 : HAS_OPTIMIZER).putInt(0);
+		header.putLong(HEADER_SIZE).putLong(structure.limit()).putLong(data_offset).putLong(data_length);
+		header.flip();
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				write_fully(channel, header);
+				write_fully(channel, structure);
+				write_fully(channel, ByteBuffer.allocate((int) (data_offset - HEADER_SIZE - structure.limit())));
+
+				// Arrays are streamed through one buffer, so saving never holds a second copy of the model
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+				DoubleBuffer doubles = buffer.asDoubleBuffer();
+				for(double[] array : writer.arrays) {
+					for(int position = 0; position < array.length; ) {
+						int count = Math.min(doubles.remaining(), array.length - position);
+						doubles.put(array, position, count);
+						position += count;
+						if(!doubles.hasRemaining()) {
+							buffer.position(0).limit(doubles.position() * 8);
+							write_fully(channel, buffer);
+							buffer.clear();
+							doubles.clear();
+						}
+					}
+				}
+				buffer.position(0).limit(doubles.position() * 8);
+				write_fully(channel, buffer);
+				channel.force(true);
+			}
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * Loads a checkpoint. The optimizer is null if none was saved.
+	 */
+	public static Checkpoint load(Path path) {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long file_size = channel.size();
+			if(file_size < HEADER_SIZE) throw new RuntimeException("Not a checkpoint");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if(header.getInt() != MAGIC) throw new RuntimeException("Not a checkpoint");
+			int version = header.getInt();
+			if(version > VERSION) throw new RuntimeException("Unsupported checkpoint version " + version);
+			int flags = header.getInt();
+			header.getInt();
+			long structure_offset = header.getLong(), structure_length = header.getLong();
+			long data_offset = header.getLong(), data_length = header.getLong();
+			if(structure_offset + structure_length > data_offset || data_offset + data_length > file_size) {
+				throw new RuntimeException("Checkpoint is truncated");
+			}
+
+			ByteBuffer structure = channel.map(FileChannel.MapMode.READ_ONLY, structure_offset, structure_length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			long doubles = data_length / 8;
+			DoubleBuffer[] windows = new DoubleBuffer[(int) ((doubles + WINDOW - 1) / WINDOW)];
+			for(int window = 0; window < windows.length; window++) {
+				long start = (long) window * WINDOW;
+				long length = Math.min(WINDOW, doubles - start);
+				windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, data_offset + start * 8, length * 8)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+
+			Reader reader = new Reader(structure, windows, version);
+			VectorFunction function = reader.read_function();
+			FunctionOptimizer optimizer = null;
+			if((flags & HAS_OPTIMIZER) != 0) {
+				optimizer = FunctionOptimizer.create_optimizer(function);
+				reader.read_optimizer(optimizer);
+			}
+			return new Checkpoint(function, optimizer);
+		} catch(IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * Trains a network with batch normalization, a residual block and single-precision affine functions, saves it with its
+	 * optimizer to the given path and loads it back. Both copies must then give identical outputs, keep the same settings
+	 * and stay identical after another training step. Returns whether they do.
+	 */
+	public static boolean check(Path path) {
+		Random random = new Random(1);
+		int N = 32;
+		double[][] inputs = new double[N][6];
+		int[] labels = new int[N];
+		for(int item = 0; item < N; item++) {
+			for(int i = 0; i < 6; i++) inputs[item][i] = random.nextGaussian();
+			labels[item] = (inputs[item][0] > 0 ? 1 : 0) + (inputs[item][1] > 0 ? 1 : 0);
+		}
+
+		FunctionSeries network = new FunctionSeries(new AffineFunction(6, 10), new BatchNormalization(10), ScalarFunction.tanh,
+			new ResidualBlock(new FunctionSeries(new AffineFunction(10, 10), new BatchNormalization(10))),
+			new AffineFunction(10, 3), VectorFunction.softmax);
+		AffineFunction.set_single_precision(network, true);
+		FunctionSeriesOptimizer optimizer = (FunctionSeriesOptimizer) FunctionOptimizer.create_optimizer(network);
+		optimizer.use_adam(0.9, 0.999, 1e-8);
+		optimizer.set_checkpoint_interval(2);
+		((BatchNormalizationOptimizer) optimizer.optimizers[1]).mean_exp = 0.7;
+		((BatchNormalizationOptimizer) optimizer.optimizers[1]).variance_exp = 0.8;
+		SoftmaxClassifierOptimizer loss = new SoftmaxClassifierOptimizer(optimizer);
+		for(int step = 0; step < 5; step++) {
+			loss.update_parameters(inputs, labels);
+		}
+
+		save(path, network, optimizer);
+		Checkpoint loaded = load(path);
+		FunctionSeries copy = (FunctionSeries) loaded.function;
+		FunctionSeriesOptimizer copy_optimizer = (FunctionSeriesOptimizer) loaded.optimizer;
+
+		boolean valid = true;
+		if(!((AffineFunction) copy.functions[0]).is_single_precision()) {
+			System.err.println("Single-precision mode was not restored");
+			valid = false;
+		}
+		BatchNormalizationOptimizer norm_optimizer = (BatchNormalizationOptimizer) copy_optimizer.optimizers[1];
+		if(copy_optimizer.checkpoint_interval != 2 || norm_optimizer.mean_exp != 0.7 || norm_optimizer.variance_exp != 0.8) {
+			System.err.println("Optimizer settings were not restored");
+			valid = false;
+		}
+
+		// Another step on both copies checks the moments, step counts and running statistics as well
+		SoftmaxClassifierOptimizer copy_loss = new SoftmaxClassifierOptimizer(copy_optimizer);
+		for(int round = 0; round < 2; round++) {
+			double error = 0;
+			for(double[] input : inputs) {
+				error = Math.max(error, Batch.max_difference(network.pass(input), copy.pass(input)));
+			}
+			if(!(error == 0)) {
+				System.err.println(String.format("Outputs differ %s training: %e", round == 0 ? "before" : "after", error));
+				valid = false;
+			}
+			loss.update_parameters(inputs, labels);
+			copy_loss.update_parameters(inputs, labels);
+		}
+		return valid;
+	}
+
+	protected static long align(long position) {
+		return (position + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+	}
+
+	protected static void write_fully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	// SERIALIZATION //
+
+	/**
+	 * Builds the structure and collects the arrays of the data section in the order they are written
+	 */
+	protected static class Writer {
+		ByteBuffer structure = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+		ArrayList<double[]> arrays = new ArrayList<>();
+		long data_position = 0;
+
+		void reserve(int bytes) {
+			if(structure.remaining() >= bytes) return;
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * structure.capacity(), structure.position() + bytes))
+				.order(ByteOrder.LITTLE_ENDIAN);
+			structure.flip();
+			larger.put(structure);
+			structure = larger;
+		}
+		void put_int(int value) {
+			reserve(4);
+			structure.putInt(value);
+		}
+		void put_long(long value) {
+			reserve(8);
+			structure.putLong(value);
+		}
+		void put_double(double value) {
+			reserve(8);
+			structure.putDouble(value);
+		}
+
+		/* Records the position of an array in the data section */
+		void put_array(double[] array) {
+			put_long(data_position);
+			arrays.add(array);
+			data_position += array.length;
+		}
+
+		void write_function(VectorFunction function) {
+			if(function instanceof FunctionSeries) {
+				FunctionSeries series = (FunctionSeries) function;
+				put_int(SERIES);
+				put_int(series.functions.length);
+				for(VectorFunction layer : series.functions) {
+					write_function(layer);
+				}
+			} else if(function instanceof ResidualBlock) {
+				put_int(RESIDUAL);
+				write_function(((ResidualBlock) function).function);
+			} else if(function instanceof AffineFunction) {
+				AffineFunction affine = (AffineFunction) function;
+				put_int(AFFINE);
+				put_int(affine.input_count);
+				put_int(affine.output_count);
+				put_int(affine.transposed_backward ? 1 : 0);
+				put_int(affine.is_single_precision() ? 1 : 0);
+				put_long(data_position);
+				for(double[] row : affine.parameters) {
+					arrays.add(row);
+					data_position += row.length;
+				}
+			} else if(function instanceof BatchNormalization) {
+				BatchNormalization norm = (BatchNormalization) function;
+				put_int(BATCH_NORM);
+				put_int(norm.dimensions);
+				put_double(norm.std_sqrt);
+				put_double(norm.std_div);
+				put_array(norm.output_mean);
+				put_array(norm.output_std);
+				put_array(norm.running_mean);
+				put_array(norm.running_variance);
+			} else {
+				for(int index = 0; index < BUILT_IN_FUNCTIONS.length; index++) {
+					if(BUILT_IN_FUNCTIONS[index] != function) continue;
+					byte[] name = BUILT_IN_NAMES[index].getBytes(StandardCharsets.UTF_8);
+					put_int(BUILT_IN);
+					put_int(name.length);
+					reserve(name.length);
+					structure.put(name);
+					return;
+				}
+				throw new RuntimeException("Cannot save " + function.getClass().getName());
+			}
+		}
+
+		/* Optimizers are written in the same order as their components are created, so they can be matched on load */
+		void write_optimizer(FunctionOptimizer optimizer) {
+			FunctionOptimizer[] children = optimizer.children();
+			put_int(optimizer.optimizers.length);
+			put_int(optimizer.block_optimizers.length);
+			put_int(children.length);
+			if(optimizer instanceof FunctionSeriesOptimizer) {
+				put_int(((FunctionSeriesOptimizer) optimizer).checkpoint_interval);
+			} else if(optimizer instanceof BatchNormalizationOptimizer) {
+				put_double(((BatchNormalizationOptimizer) optimizer).mean_exp);
+				put_double(((BatchNormalizationOptimizer) optimizer).variance_exp);
+			}
+			for(DoubleOptimizer opt : optimizer.optimizers) {
+				put_int(opt.optimizer.ordinal());
+				put_int(opt.training_time);
+				put_double(opt.learning_rate);
+				put_double(opt.sgdm_decay);
+				put_double(opt.adagrad_protection);
+				put_double(opt.rms_protection);
+				put_double(opt.rms_decay);
+				put_double(opt.adam_first_bias);
+				put_double(opt.adam_second_bias);
+				put_double(opt.adam_protection);
+				put_double(opt.first_moment);
+				put_double(opt.second_moment);
+			}
+			for(BlockOptimizer opt : optimizer.block_optimizers) {
+				put_int(opt.size);
+				put_int(opt.optimizer.ordinal());
+				put_int(opt.training_time);
+				put_double(opt.learning_rate);
+				put_double(opt.sgdm_decay);
+				put_double(opt.adagrad_protection);
+				put_double(opt.rms_protection);
+				put_double(opt.rms_decay);
+				put_double(opt.adam_first_bias);
+				put_double(opt.adam_second_bias);
+				put_double(opt.adam_protection);
+				put_int(opt.first_moment == null ? 0 : 1);
+				put_int(opt.second_moment == null ? 0 : 1);
+				if(opt.first_moment != null) put_array(opt.first_moment);
+				if(opt.second_moment != null) put_array(opt.second_moment);
+			}
+			for(FunctionOptimizer child : children) {
+				write_optimizer(child);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds layers and optimizer state from a mapped checkpoint
+	 */
+	protected static class Reader {
+		ByteBuffer structure;
+		DoubleBuffer[] windows;
+		int version;
+		Reader(ByteBuffer layout, DoubleBuffer[] data, int file_version) {
+			structure = layout;
+			windows = data;
+			version = file_version;
+		}
+
+		/* Copies doubles starting at the given position of the data section, crossing windows if needed */
+		void read_array(long position, double[] array) {
+			for(int filled = 0; filled < array.length; ) {
+				int window = (int) (position / WINDOW), offset = (int) (position % WINDOW);
+				if(window >= windows.length) throw new RuntimeException("Checkpoint is truncated");
+				int count = Math.min(array.length - filled, windows[window].limit() - offset);
+				windows[window].get(offset, array, filled, count);
+				filled += count;
+				position += count;
+			}
+		}
+		void read_array(double[] array) {
+			read_array(structure.getLong(), array);
+		}
+
+		VectorFunction read_function() {
+			int tag = structure.getInt();
+			switch(tag) {
+				case SERIES:
+				VectorFunction[] layers = new VectorFunction[structure.getInt()];
+				for(int layer = 0; layer < layers.length; layer++) {
+					layers[layer] = read_function();
+				}
+				return new FunctionSeries(layers);
+
+				case RESIDUAL:
+				return new ResidualBlock(read_function());
+
+				case AFFINE:
+				int inputs = structure.getInt(), outputs = structure.getInt();
+				AffineFunction affine = new AffineFunction(inputs, outputs, false);
+				affine.transposed_backward = structure.getInt() != 0;
+				boolean single = version >= 2 && structure.getInt() != 0;
+				long position = structure.getLong();
+				for(double[] row : affine.parameters) {
+					read_array(position, row);
+					position += row.length;
+				}
+				affine.set_single_precision(single);
+				return affine;
+
+				case BATCH_NORM:
+				BatchNormalization norm = new BatchNormalization(structure.getInt());
+				norm.std_sqrt = structure.getDouble();
+				norm.std_div = structure.getDouble();
+				read_array(norm.output_mean);
+				read_array(norm.output_std);
+				read_array(norm.running_mean);
+				read_array(norm.running_variance);
+				return norm;
+
+				case BUILT_IN:
+				byte[] bytes = new byte[structure.getInt()];
+				structure.get(bytes);
+				String name = new String(bytes, StandardCharsets.UTF_8);
+				for(int index = 0; index < BUILT_IN_NAMES.length; index++) {
+					if(BUILT_IN_NAMES[index].equals(name)) return BUILT_IN_FUNCTIONS[index];
+				}
+				throw new RuntimeException("Unknown function " + name);
+
+				default:
+				throw new RuntimeException("Unknown layer tag " + tag);
+			}
+		}
+
+		void read_optimizer(FunctionOptimizer optimizer) {
+			FunctionOptimizer[] children = optimizer.children();
+			int double_count = structure.getInt(), block_count = structure.getInt(), child_count = structure.getInt();
+			if(double_count != optimizer.optimizers.length || block_count != optimizer.block_optimizers.length
+					|| child_count != children.length) {
+				throw new RuntimeException("Checkpoint does not match the optimizer of " + optimizer.getClass().getName());
+			}
+			if(version >= 2 && optimizer instanceof FunctionSeriesOptimizer) {
+				((FunctionSeriesOptimizer) optimizer).checkpoint_interval = structure.getInt();
+			} else if(version >= 2 && optimizer instanceof BatchNormalizationOptimizer) {
+				((BatchNormalizationOptimizer) optimizer).mean_exp = structure.getDouble();
+				((BatchNormalizationOptimizer) optimizer).variance_exp = structure.getDouble();
+			}
+			DoubleOptimizer.Strategy[] strategies = DoubleOptimizer.Strategy.values();
+			for(DoubleOptimizer opt : optimizer.optimizers) {
+				opt.optimizer = strategies[structure.getInt()];
+				opt.training_time = structure.getInt();
+				opt.learning_rate = structure.getDouble();
+				opt.sgdm_decay = structure.getDouble();
+				opt.adagrad_protection = structure.getDouble();
+				opt.rms_protection = structure.getDouble();
+				opt.rms_decay = structure.getDouble();
+				opt.adam_first_bias = structure.getDouble();
+				opt.adam_second_bias = structure.getDouble();
+				opt.adam_protection = structure.getDouble();
+				opt.first_moment = structure.getDouble();
+				opt.second_moment = structure.getDouble();
+			}
+			for(BlockOptimizer opt : optimizer.block_optimizers) {
+				if(structure.getInt() != opt.size) throw new RuntimeException("Checkpoint does not match the optimizer size");
+				opt.optimizer = strategies[structure.getInt()];
+				opt.training_time = structure.getInt();
+				opt.learning_rate = structure.getDouble();
+				opt.sgdm_decay = structure.getDouble();
+				opt.adagrad_protection = structure.getDouble();
+				opt.rms_protection = structure.getDouble();
+				opt.rms_decay = structure.getDouble();
+				opt.adam_first_bias = structure.getDouble();
+				opt.adam_second_bias = structure.getDouble();
+				opt.adam_protection = structure.getDouble();
+				boolean first = structure.getInt() != 0, second = structure.getInt() != 0;
+				opt.first_moment = first ? new double[opt.size] : null;
+				opt.second_moment = second ? new double[opt.size] : null;
+				if(first) read_array(opt.first_moment);
+				if(second) read_array(opt.second_moment);
+			}
+			for(FunctionOptimizer child : children) {
+				read_optimizer(child);
+			}
+		}
+	}
+
+}
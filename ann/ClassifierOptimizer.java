@@ -1,5 +1,8 @@
 package apple_lib.ann;
 
+import apple_lib.function.Batch;
+import apple_lib.function.SparseBatch;
+
 public class ClassifierOptimizer {
 
 	protected FunctionOptimizer optimizer;
@@ -52,7 +55,7 @@ public class ClassifierOptimizer {
 
 	public double[][] update_parameters(double[][] inputs, int[] labels) {
 		int batch_size = inputs.length;
-		double[][] outputs = optimizer.target.pass_all(inputs);
+		double[][] outputs = optimizer.forward(inputs);
 		// Calculate derivatives
 		double[][] deriv = new double[batch_size][];
 		for(int item = 0; item < batch_size; item++) {
@@ -65,5 +68,35 @@ public class ClassifierOptimizer {
 		return optimizer.update_parameters(inputs, deriv);
 	}
 
-}
+	public Batch update_parameters(Batch inputs, int[] labels) {
+		int batch_size = inputs.rows;
+		Batch outputs = optimizer.forward(inputs);
+		// Calculate derivatives
+		Batch deriv = new Batch(batch_size, outputs.columns);
+		for(int item = 0; item < batch_size; item++) {
+			double activation = outputs.get(item, labels[item]);
+			deriv.set(item, labels[item], -1 / (activation + 0.001) / batch_size);
+		}
 
+		// Optimize
+		return optimizer.update_parameters(inputs, deriv);
+	}
+
+	/**
+	 * Updates using sparse inputs. Derivatives with respect to the inputs are not calculated.
+	 */
+	public void update_parameters(SparseBatch inputs, int[] labels) {
+		int batch_size = inputs.rows;
+		Batch outputs = optimizer.target.pass_all(inputs);
+		// Calculate derivatives
+		Batch deriv = new Batch(batch_size, outputs.columns);
+		for(int item = 0; item < batch_size; item++) {
+			double activation = outputs.get(item, labels[item]);
+			deriv.set(item, labels[item], -1 / (activation + 0.001) / batch_size);
+		}
+
+		// Optimize
+		optimizer.update_parameters(inputs, deriv);
+	}
+
+}
@@ -148,7 +148,7 @@ public class DoubleOptimizer {
 
 			case RMSProp:
 			second_moment = rms_decay * second_moment + (1 - rms_decay) * deriv * deriv;
-			return -learning_rate * deriv / Math.sqrt(second_moment) + rms_protection;
+			return -learning_rate * deriv / (Math.sqrt(second_moment) + rms_protection);
 
 			case Adam:
 			first_moment = adam_first_bias * first_moment + (1 - adam_first_bias) * deriv;
@@ -1,10 +1,10 @@
 package apple_lib.ann;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
 
+import apple_lib.function.Batch;
 import apple_lib.function.ScalarFunction;
+import apple_lib.function.SparseBatch;
 import apple_lib.function.VectorFunction;
 
 /**
@@ -20,6 +20,16 @@ public class FunctionOptimizer {
 
 	/* Unit optimizers */
 	protected DoubleOptimizer[] optimizers;
+
+	/* Optimizers of parameter blocks */
+	protected BlockOptimizer[] block_optimizers;
+
+	/* Averages gradients across data-parallel replicas before they are applied. Null when training alone. */
+	protected RingAllReduce all_reduce;
+
+	/* Whether this optimizer waits for averaged gradients to be applied at the end of each update. Only true for the
+	   optimizer the all-reduce was set on. Optimizers of components leave it to that one. */
+	protected boolean flushes_all_reduce;
 	 
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
@@ -30,6 +40,7 @@ public class FunctionOptimizer {
 		target = func;
 
 		optimizers = new DoubleOptimizer[0];
+		block_optimizers = new BlockOptimizer[0];
 	}
 
 	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
@@ -52,6 +63,12 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.use_adam(first_moment_bias, second_moment_bias, protection);
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.use_adam(first_moment_bias, second_moment_bias, protection);
+		}
+		for(FunctionOptimizer child : children()) {
+			child.use_adam(first_moment_bias, second_moment_bias, protection);
+		}
 	}
 
 	/**
@@ -61,6 +78,12 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.use_rmsprop(protection, decay);
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.use_rmsprop(protection, decay);
+		}
+		for(FunctionOptimizer child : children()) {
+			child.use_rmsprop(protection, decay);
+		}
 	}
 
 	/**
@@ -70,6 +93,12 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.use_adagrad(protection);
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.use_adagrad(protection);
+		}
+		for(FunctionOptimizer child : children()) {
+			child.use_adagrad(protection);
+		}
 	}
 
 	/**
@@ -79,6 +108,12 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.use_sgd_momentum(decay);
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.use_sgd_momentum(decay);
+		}
+		for(FunctionOptimizer child : children()) {
+			child.use_sgd_momentum(decay);
+		}
 	}
 
 	/**
@@ -88,6 +123,12 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.use_sgd();
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.use_sgd();
+		}
+		for(FunctionOptimizer child : children()) {
+			child.use_sgd();
+		}
 	}
 
 	/**
@@ -97,68 +138,120 @@ public class FunctionOptimizer {
 		for(DoubleOptimizer opt : optimizers) {
 			opt.set_learning_rate(val);
 		}
+		for(BlockOptimizer opt : block_optimizers) {
+			opt.set_learning_rate(val);
+		}
+		for(FunctionOptimizer child : children()) {
+			child.set_learning_rate(val);
+		}
 	}
 
 	/**
-	 * Backpropagates, but does not update any parameters
+	 * Trains as one replica of a data-parallel group. Each replica passes its own shard of every batch, and gradients are
+	 * averaged across the group before they are applied. Reductions overlap with the rest of the backward pass. Every
+	 * update of this optimizer waits for them to finish before it returns. 
 	 */
-	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
-		int N = inputs.length;
+	public void set_all_reduce(RingAllReduce ring) {
+		share_all_reduce(ring);
+		flushes_all_reduce = true;
+	}
 
-		double[][][] backpropagate_derivatives = target.backpropagate_all(inputs);
-		double[][] input_deriv = new double[N][];
+	/**
+	 * Sets the all-reduce of this optimizer and its components without making them wait for it
+	 */
+	protected void share_all_reduce(RingAllReduce ring) {
+		all_reduce = ring;
+		flushes_all_reduce = false;
+		for(FunctionOptimizer child : children()) {
+			child.share_all_reduce(ring);
+		}
+	}
 
-		int thread_count = Math.min(Runtime.getRuntime().availableProcessors(), inputs.length);
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
-		for(int thread = 0; thread < thread_count; thread++) {
-			int start = (N * thread) / thread_count;
-			int end = (N * (thread + 1)) / thread_count;
+	/**
+	 * Waits for the gradients queued by an update to be averaged and applied, if this optimizer is the one the all-reduce
+	 * was set on. Called at the end of every update that can queue gradients. 
+	 */
+	protected void finish_update() {
+		if(all_reduce != null && flushes_all_reduce) all_reduce.flush();
+	}
 
-			BackpropagateUnit unit = new BackpropagateUnit(inputs, deriv, backpropagate_derivatives, input_deriv, start, end);
-			service.execute(unit);
+	/**
+	 * Copies every parameter from rank zero to the other replicas. Should be called once before data-parallel training
+	 * starts, since replicas are initialized independently. 
+	 */
+	public void synchronize_parameters() {
+		ArrayList<double[]> arrays = new ArrayList<>();
+		collect_parameters(arrays);
+		int length = 0;
+		for(double[] array : arrays) {
+			length += array.length;
 		}
 
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+		double[] flat = new double[length];
+		int position = 0;
+		for(double[] array : arrays) {
+			System.arraycopy(array, 0, flat, position, array.length);
+			position += array.length;
+		}
+		all_reduce.broadcast(flat);
+		position = 0;
+		for(double[] array : arrays) {
+			System.arraycopy(flat, position, array, 0, array.length);
+			position += array.length;
 		}
-
-		return input_deriv;
 	}
 
-	// MULTITHREADING //
-	
-	protected static class BackpropagateUnit implements Runnable {
-		double[][][] mid_deriv;
-		double[][] out_deriv, in_deriv, func_inputs;
-		int start, stop;
-		BackpropagateUnit(double[][] inputs, double[][] out, double[][][] mid, double[][] in, int begin, int end) {
-			func_inputs = inputs;
-			out_deriv = out;
-			mid_deriv = mid;
-			in_deriv = in;
-			start = begin;
-			stop = end;
+	/**
+	 * Adds the parameter arrays of the target function and its components to the list
+	 */
+	protected void collect_parameters(ArrayList<double[]> arrays) {
+		for(FunctionOptimizer child : children()) {
+			child.collect_parameters(arrays);
 		}
-		@Override
-		public void run() {
-			for(int item = start; item < stop; item++) {
-				double[] out = out_deriv[item];
-				double[][] mid = mid_deriv[item];
-				double[] in = new double[func_inputs[item].length];
+	}
 
-				for(int i = 0; i < in.length; i++) {
-					for(int o = 0; o < out.length; o++) {
-						in[i] += mid[o][i] * out[o];
-					}
-				}
+	/**
+	 * Returns the optimizers of component functions. Settings are passed on to them.
+	 */
+	protected FunctionOptimizer[] children() {
+		return new FunctionOptimizer[0];
+	}
 
-				in_deriv[item] = in;
-			}
-		}
+	/**
+	 * Passes inputs forward ahead of an update with the same inputs. Optimizers that can use the intermediate results of
+	 * the pass in the update keep them until then. 
+	 */
+	public double[][] forward(double[][] inputs) {
+		return target.pass_all(inputs);
 	}
 
-}
+	/**
+	 * Passes a contiguous batch forward ahead of an update with the same inputs
+	 */
+	public Batch forward(Batch inputs) {
+		return target.pass_all(inputs);
+	}
 
+	/**
+	 * Backpropagates, but does not update any parameters
+	 */
+	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
+		return target.vjp_all(inputs, deriv);
+	}
+
+	/**
+	 * Backpropagates a contiguous batch, but does not update any parameters
+	 */
+	public Batch update_parameters(Batch inputs, Batch deriv) {
+		return target.vjp_all(inputs, deriv);
+	}
+
+	/**
+	 * Updates parameters using a batch of sparse inputs. Derivatives with respect to sparse inputs are not calculated. By
+	 * default, a dense copy of the inputs is used.
+	 */
+	public void update_parameters(SparseBatch inputs, Batch deriv) {
+		update_parameters(inputs.to_batch(), deriv);
+	}
+
+}
@@ -1,6 +1,9 @@
 package apple_lib.ann;
 
+import apple_lib.function.Batch;
+import apple_lib.function.SparseBatch;
 import apple_lib.function.VectorFunction;
+import apple_lib.function.Workspace;
 
 /**
  * Connects multiple functions together through composition. 
@@ -12,6 +15,9 @@ public class FunctionSeries extends VectorFunction {
 	/* Sizes */
 	protected VectorFunction[] functions;
 
+	/* Workspace reused by pass(input, output). Created lazily for each thread and recreated when the input size changes. */
+	protected final ThreadLocal<CachedWorkspace> cached_workspace = new ThreadLocal<>();
+
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
 	/**
@@ -37,32 +43,120 @@ public class FunctionSeries extends VectorFunction {
 	}
 
 	@Override
-	public double[][] backpropagate(double[] input) {
-		double[][] inputs = new double[functions.length][];
-		inputs[0] = input;
-		for(int layer = 1; layer < functions.length; layer++) {
-			inputs[layer] = functions[layer - 1].pass(inputs[layer - 1]);
+	public double[] pass(double[] input, double[] output) {
+		CachedWorkspace cached = cached_workspace.get();
+		if(cached == null || cached.input_size != input.length) {
+			cached = new CachedWorkspace(input.length, create_workspace(input.length));
+			cached_workspace.set(cached);
+		}
+		return pass(input, output, cached.workspace);
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output, Workspace workspace) {
+		int last = functions.length - 1;
+		double[] current = input;
+		for(int layer = 0; layer < last; layer++) {
+			current = functions[layer].pass(current, workspace.buffers[layer], workspace.children[layer]);
+		}
+		return functions[last].pass(current, output, workspace.children[last]);
+	}
+
+	/**
+	 * Allocates one buffer for the output of every layer except the last. The final output is written to the array
+	 * passed into the forward pass. 
+	 */
+	@Override
+	public Workspace create_workspace(int input_size) {
+		double[][] buffers = new double[functions.length - 1][];
+		Workspace[] children = new Workspace[functions.length];
+		for(int layer = 0; layer < functions.length; layer++) {
+			children[layer] = functions[layer].create_workspace(input_size);
+			input_size = functions[layer].output_size(input_size);
+			if(layer < buffers.length) buffers[layer] = new double[input_size];
+		}
+		return new Workspace(buffers, children);
+	}
+
+	/**
+	 * Feeds forward while recording the input of every layer. Entry i of the tape is the input of layer i and the last
+	 * entry is the output. 
+	 */
+	public double[][] record(double[] input) {
+		return record(input, functions.length);
+	}
+
+	/**
+	 * Records the inputs of the given number of leading layers followed by the output of the last of them. 
+	 */
+	public double[][] record(double[] input, int layers) {
+		double[][] tape = new double[layers + 1][];
+		tape[0] = input;
+		for(int layer = 0; layer < layers; layer++) {
+			tape[layer + 1] = functions[layer].pass(tape[layer]);
 		}
-		int output_size = functions[functions.length - 1].pass(inputs[functions.length - 1]).length;
+		return tape;
+	}
+
+	/**
+	 * Determines the full Jacobian from a recorded tape. Only the layer inputs are read. 
+	 */
+	public double[][] backpropagate(double[][] tape) {
+		int last = functions.length - 1;
+		int output_size = functions[last].output_size(tape[last].length);
 
-		// Store derivative of outputs with respect to current working layer
-		double[][] deriv_next = functions[functions.length - 1].backpropagate(inputs[functions.length - 1]);
-		for(int layer = functions.length - 2; layer >= 0; layer--) {
-			// Store derivative of current layer outputs
-			double[][] deriv_curr = functions[layer].backpropagate(inputs[layer]);
+		// Chain every row of the Jacobian through the layers at once, starting from the identity
+		double[][] deriv = new double[output_size][output_size];
+		for(int out = 0; out < output_size; out++) {
+			deriv[out][out] = 1;
+		}
+		for(int layer = last; layer >= 0; layer--) {
+			deriv = functions[layer].vjp(tape[layer], deriv);
+		}
+		return deriv;
+	}
 
-			// Matrix multiplication
-			double[][] new_deriv = new double[output_size][inputs[layer].length];
-			for(int out = 0; out < output_size; out++) {
-				for(int in = 0; in < inputs[layer].length; in++) {
-					for(int inter = 0; inter < inputs[layer + 1].length; inter++) {
-						new_deriv[out][in] += deriv_next[out][inter] * deriv_curr[inter][in];
-					}
-				}
-			}
-			deriv_next = new_deriv;
+	/**
+	 * Vector-Jacobian product from a recorded tape. Only the layer inputs are read. 
+	 */
+	public double[] vjp(double[][] tape, double[] upstream) {
+		double[] deriv = upstream;
+		for(int layer = functions.length - 1; layer >= 0; layer--) {
+			deriv = functions[layer].vjp(tape[layer], deriv);
 		}
-		return deriv_next;
+		return deriv;
+	}
+
+	@Override
+	public double[][] backpropagate(double[] input) {
+		// The final output is never needed
+		return backpropagate(record(input, functions.length - 1));
+	}
+
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		return vjp(record(input, functions.length - 1), upstream);
+	}
+
+	@Override
+	public double[][] vjp(double[] input, double[][] upstream) {
+		double[][] tape = record(input, functions.length - 1);
+		double[][] deriv = upstream;
+		for(int layer = functions.length - 1; layer >= 0; layer--) {
+			deriv = functions[layer].vjp(tape[layer], deriv);
+		}
+		return deriv;
+	}
+
+	@Override
+	public double[] jvp(double[] input, double[] tangent) {
+		// Carry the value and its tangent through each layer together
+		double[] value = input;
+		for(int layer = 0; layer < functions.length - 1; layer++) {
+			tangent = functions[layer].jvp(value, tangent);
+			value = functions[layer].pass(value);
+		}
+		return functions[functions.length - 1].jvp(value, tangent);
 	}
 
 	@Override
@@ -74,5 +168,71 @@ public class FunctionSeries extends VectorFunction {
 		return output;
 	}
 
-}
+	@Override
+	public int output_size(int input_size) {
+		for(VectorFunction layer : functions) {
+			input_size = layer.output_size(input_size);
+		}
+		return input_size;
+	}
+
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		Batch current = inputs;
+		for(int layer = 0; layer < functions.length - 1; layer++) {
+			current = functions[layer].pass_all(current);
+		}
+		return functions[functions.length - 1].pass_all(current, outputs);
+	}
 
+	@Override
+	public Batch infer_all(Batch inputs, Batch outputs) {
+		Batch current = inputs;
+		for(int layer = 0; layer < functions.length - 1; layer++) {
+			current = functions[layer].infer_all(current);
+		}
+		return functions[functions.length - 1].infer_all(current, outputs);
+	}
+
+	@Override
+	public Batch pass_all(SparseBatch inputs) {
+		// Only the first layer sees the sparse inputs
+		Batch current = functions[0].pass_all(inputs);
+		for(int layer = 1; layer < functions.length; layer++) {
+			current = functions[layer].pass_all(current);
+		}
+		return current;
+	}
+
+	@Override
+	public Batch vjp_all(Batch inputs, Batch upstream, Batch outputs) {
+		Batch[] chain = new Batch[functions.length];
+		chain[0] = inputs;
+		for(int layer = 1; layer < functions.length; layer++) {
+			chain[layer] = functions[layer - 1].pass_all(chain[layer - 1]);
+		}
+
+		// Chain products from the last layer to the first
+		Batch deriv = upstream;
+		for(int layer = functions.length - 1; layer > 0; layer--) {
+			deriv = functions[layer].vjp_all(chain[layer], deriv);
+		}
+		return functions[0].vjp_all(chain[0], deriv, outputs);
+	}
+
+	// WORKSPACE CACHE //
+
+	/**
+	 * Workspace together with the input size it was created for
+	 */
+	protected static class CachedWorkspace {
+		protected final int input_size;
+		protected final Workspace workspace;
+
+		protected CachedWorkspace(int input_size, Workspace workspace) {
+			this.input_size = input_size;
+			this.workspace = workspace;
+		}
+	}
+
+}
@@ -1,7 +1,12 @@
 package apple_lib.ann;
 
+import apple_lib.function.Batch;
+import apple_lib.function.SparseBatch;
+
 /**
- * Connects multiple optimizers together
+ * Connects multiple optimizers together. The inputs of every layer recorded by the forward pass form a tape. The backward
+ * pass releases each entry as soon as the layer that reads it has been updated. With checkpointing, only some entries are
+ * kept and the rest are recomputed when the backward pass reaches them. 
  */ 
 public class FunctionSeriesOptimizer extends FunctionOptimizer {
 
@@ -10,6 +15,9 @@ public class FunctionSeriesOptimizer extends FunctionOptimizer {
 	/* Optimizer chain */
 	protected FunctionOptimizer[] optimizers;
 
+	/* Number of layers between kept inputs. Zero keeps every input. */
+	protected int checkpoint_interval;
+
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
 	/**
@@ -27,24 +35,165 @@ public class FunctionSeriesOptimizer extends FunctionOptimizer {
 
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
 
+	@Override
+	protected FunctionOptimizer[] children() {
+		return optimizers;
+	}
+
+	/**
+	 * Keeps only the inputs of every k-th layer during the forward pass. The inputs in between are recomputed from the
+	 * nearest kept input during the backward pass, so every layer is passed through up to twice. An interval near the
+	 * square root of the number of layers keeps the fewest batches alive. Zero keeps every input. 
+	 */
+	public void set_checkpoint_interval(int interval) {
+		if(interval < 0) throw new RuntimeException("Checkpoint interval cannot be negative");
+		checkpoint_interval = interval;
+	}
+
+	/**
+	 * Returns true if the input of the given layer is dropped by the forward pass
+	 */
+	protected boolean dropped(int layer) {
+		return checkpoint_interval > 0 && layer % checkpoint_interval != 0;
+	}
+
 	@Override
 	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
-		int N = inputs.length;
-		
-		// Load inputs
-		double[][][] input_chain = new double[optimizers.length][N][];
+		return backward(forward(inputs, optimizers.length - 1), deriv, optimizers.length);
+	}
+
+	@Override
+	public Batch update_parameters(Batch inputs, Batch deriv) {
+		return backward(forward(inputs, optimizers.length - 1), deriv, optimizers.length);
+	}
+
+	@Override
+	public void update_parameters(SparseBatch inputs, Batch deriv) {
+		backward(inputs, forward(inputs, optimizers.length - 1), deriv, optimizers.length);
+	}
+
+	/**
+	 * Feeds forward through the given number of leading layers. Returns the input of each of these layers followed by the
+	 * output of the last one. Inputs dropped for checkpointing are null. 
+	 */
+	public double[][][] forward(double[][] inputs, int layers) {
+		double[][][] input_chain = new double[layers + 1][][];
 		input_chain[0] = inputs;
-		for(int layer = 1; layer < optimizers.length; layer++) {
-			input_chain[layer] = optimizers[layer - 1].target.pass_all(input_chain[layer - 1]);
+		for(int layer = 1; layer <= layers; layer++) {
+			// Layers whose input is dropped keep nothing from the pass either
+			if(dropped(layer - 1)) {
+				input_chain[layer] = optimizers[layer - 1].target.pass_all(input_chain[layer - 1]);
+				input_chain[layer - 1] = null;
+			} else {
+				input_chain[layer] = optimizers[layer - 1].forward(input_chain[layer - 1]);
+			}
+		}
+		return input_chain;
+	}
+
+	/**
+	 * Feeds forward a contiguous batch through the given number of leading layers. Returns the input of each of these
+	 * layers followed by the output of the last one. Inputs dropped for checkpointing are null. 
+	 */
+	public Batch[] forward(Batch inputs, int layers) {
+		Batch[] input_chain = new Batch[layers + 1];
+		input_chain[0] = inputs;
+		for(int layer = 1; layer <= layers; layer++) {
+			// Layers whose input is dropped keep nothing from the pass either
+			if(dropped(layer - 1)) {
+				input_chain[layer] = optimizers[layer - 1].target.pass_all(input_chain[layer - 1]);
+				input_chain[layer - 1] = null;
+			} else {
+				input_chain[layer] = optimizers[layer - 1].forward(input_chain[layer - 1]);
+			}
+		}
+		return input_chain;
+	}
+
+	/**
+	 * Feeds sparse inputs forward through the given number of leading layers. Only the first layer sees the sparse inputs,
+	 * so the first entry of the result is null. The rest are the inputs of the following layers and the output of the last.
+	 * Inputs dropped for checkpointing are null, except the input of the second layer, which is always kept. 
+	 */
+	public Batch[] forward(SparseBatch inputs, int layers) {
+		Batch[] input_chain = new Batch[layers + 1];
+		if(layers > 0) input_chain[1] = optimizers[0].target.pass_all(inputs);
+		for(int layer = 2; layer <= layers; layer++) {
+			// The sparse inputs cannot be passed through again, so the input of the second layer is always kept
+			if(dropped(layer - 1) && layer > 2) {
+				input_chain[layer] = optimizers[layer - 1].target.pass_all(input_chain[layer - 1]);
+				input_chain[layer - 1] = null;
+			} else {
+				input_chain[layer] = optimizers[layer - 1].forward(input_chain[layer - 1]);
+			}
 		}
+		return input_chain;
+	}
 
-		// Backpropagate through all layers
-		for(int layer = optimizers.length - 1; layer >= 0; layer--) {
+	/**
+	 * Updates the given number of leading layers using inputs recorded by forward. The derivative is taken with respect to
+	 * the output of the last of these layers. Inputs are released from the tape once their layers have been updated. 
+	 */
+	public double[][] backward(double[][][] input_chain, double[][] deriv, int layers) {
+		for(int layer = layers - 1; layer >= 0; layer--) {
+			if(input_chain[layer] == null) recompute(input_chain, layer);
 			deriv = optimizers[layer].update_parameters(input_chain[layer], deriv);
+			input_chain[layer] = null;
 		}
+		finish_update();
+		return deriv;
+	}
 
+	/**
+	 * Updates the given number of leading layers using contiguous inputs recorded by forward. The derivative is taken with
+	 * respect to the output of the last of these layers. Inputs are released from the tape once their layers have been
+	 * updated. 
+	 */
+	public Batch backward(Batch[] input_chain, Batch deriv, int layers) {
+		for(int layer = layers - 1; layer >= 0; layer--) {
+			if(input_chain[layer] == null) recompute(input_chain, layer);
+			deriv = optimizers[layer].update_parameters(input_chain[layer], deriv);
+			input_chain[layer] = null;
+		}
+		finish_update();
 		return deriv;
 	}
 
-}
+	/**
+	 * Updates the given number of leading layers using sparse inputs and the rest of the chain recorded by forward. The
+	 * derivative is taken with respect to the output of the last of these layers. Inputs are released from the tape once
+	 * their layers have been updated. 
+	 */
+	public void backward(SparseBatch inputs, Batch[] input_chain, Batch deriv, int layers) {
+		for(int layer = layers - 1; layer > 0; layer--) {
+			if(input_chain[layer] == null) recompute(input_chain, layer);
+			deriv = optimizers[layer].update_parameters(input_chain[layer], deriv);
+			input_chain[layer] = null;
+		}
+		if(layers > 0) optimizers[0].update_parameters(inputs, deriv);
+		finish_update();
+	}
 
+	/**
+	 * Passes the nearest kept input forward again, refilling the tape up to the input of the given layer
+	 */
+	protected void recompute(double[][][] input_chain, int layer) {
+		int kept = layer - 1;
+		while(input_chain[kept] == null) kept--;
+		for(int next = kept + 1; next <= layer; next++) {
+			input_chain[next] = optimizers[next - 1].forward(input_chain[next - 1]);
+		}
+	}
+
+	/**
+	 * Passes the nearest kept input forward again, refilling the tape up to the input of the given layer
+	 */
+	protected void recompute(Batch[] input_chain, int layer) {
+		int kept = layer - 1;
+		while(input_chain[kept] == null) kept--;
+		for(int next = kept + 1; next <= layer; next++) {
+			input_chain[next] = optimizers[next - 1].forward(input_chain[next - 1]);
+		}
+	}
+
+}
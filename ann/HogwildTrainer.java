@@ -0,0 +1,354 @@
+package apple_lib.ann;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import apple_lib.function.ComputePool;
+import apple_lib.function.SparseBatch;
+import apple_lib.function.VectorFunction;
+
+/**
+ * Trains a function asynchronously from several threads in the style of Hogwild. Every worker has its own optimizer over the
+ * same parameters and runs its own minibatches without waiting for the others. Updates are written to the shared parameters
+ * without locks, so a worker may read weights that another worker is halfway through updating and an update may
+ * occasionally be overwritten. Parameters are plain doubles, and the Java memory model does not require writes of
+ * non-volatile doubles to be atomic (JLS 17.7), so a worker may even read a weight made of halves of two different values.
+ * 64-bit HotSpot writes doubles in one store, but nothing here depends on it: like stale reads, torn reads are noise that
+ * SGD tolerates. Works best when gradients are sparse and updates rarely touch the same weights.
+ */
+public class HogwildTrainer {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Shared function being trained */
+	protected final VectorFunction target;
+
+	/* Optimizer of each worker. Optimizer state is private to each worker. */
+	protected final FunctionOptimizer[] optimizers;
+
+	/* Number of steps finished by all workers */
+	protected final AtomicLong step_count;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Creates one optimizer per worker.
+	 */
+	public HogwildTrainer(VectorFunction func, int workers) {
+		if(workers < 1) throw new RuntimeException("Worker count must be positive");
+		target = func;
+		optimizers = new FunctionOptimizer[workers];
+		for(int worker = 0; worker < workers; worker++) {
+			optimizers[worker] = FunctionOptimizer.create_optimizer(func);
+		}
+		step_count = new AtomicLong();
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Compares convergence per wall-clock second of asynchronous training against the synchronous path on a wide sparse
+	 * classification task. Both train a fresh linear softmax classifier over one-hot features with SGD, the same minibatches
+	 * and the same learning rate: once with the given number of Hogwild workers, and once with a single optimizer whose
+	 * updates use the parallel regions of the compute pool. Held-out loss and accuracy are sampled after every interval of
+	 * training time, so the rows show time to accuracy rather than step rate. Returns one row per sample holding the
+	 * training time in seconds and the loss and accuracy of the asynchronous and then the synchronous run, and prints them.
+	 */
+	public static double[][] benchmark(int workers, long interval, int samples, TimeUnit unit) {
+		int features = 1000, classes = 4, active = 5, batch_size = 32, batches = 256, tests = 1000;
+		double learning_rate = 0.1;
+		Random random = new Random(1);
+
+		// The label of an item is the class most of its active features vote for
+		int[] feature_class = new int[features];
+		for(int feature = 0; feature < features; feature++) {
+			feature_class[feature] = random.nextInt(classes);
+		}
+		SparseBatch[] inputs = new SparseBatch[batches];
+		int[][] labels = new int[batches][batch_size];
+		for(int batch = 0; batch < batches; batch++) {
+			int[][] indices = new int[batch_size][active];
+			double[][] values = new double[batch_size][active];
+			for(int item = 0; item < batch_size; item++) {
+				draw(random, features, indices[item], values[item]);
+				labels[batch][item] = vote(feature_class, classes, indices[item]);
+			}
+			inputs[batch] = SparseBatch.of(indices, values, features);
+		}
+		int[][] test_indices = new int[tests][active];
+		int[] test_labels = new int[tests];
+		for(int item = 0; item < tests; item++) {
+			draw(random, features, test_indices[item], new double[active]);
+			test_labels[item] = vote(feature_class, classes, test_indices[item]);
+		}
+
+		double[][] results = new double[samples][5];
+		long nanos = unit.toNanos(interval);
+
+		// Asynchronous run. Each worker walks through the minibatches from its own offset across all slices.
+		FunctionSeries classifier = new FunctionSeries(new AffineFunction(features, classes), VectorFunction.softmax);
+		HogwildTrainer trainer = new HogwildTrainer(classifier, workers);
+		trainer.use_sgd();
+		trainer.set_learning_rate(learning_rate);
+		SoftmaxClassifierOptimizer[] losses = new SoftmaxClassifierOptimizer[workers];
+		for(int worker = 0; worker < workers; worker++) {
+			losses[worker] = new SoftmaxClassifierOptimizer(trainer.optimizer(worker));
+		}
+		long[] positions = new long[workers];
+		for(int sample = 0; sample < samples; sample++) {
+			trainer.train_for(nanos, TimeUnit.NANOSECONDS, (optimizer, worker, step) -> {
+				int batch = (int) ((positions[worker]++ * workers + worker) % batches);
+				losses[worker].update_parameters(inputs[batch], labels[batch]);
+			});
+			double[] evaluation = evaluate(classifier, features, test_indices, test_labels);
+			results[sample][0] = (sample + 1) * nanos * 1e-9;
+			results[sample][1] = evaluation[0];
+			results[sample][2] = evaluation[1];
+		}
+
+		// Synchronous run over the same minibatches
+		classifier = new FunctionSeries(new AffineFunction(features, classes), VectorFunction.softmax);
+		FunctionOptimizer optimizer = FunctionOptimizer.create_optimizer(classifier);
+		optimizer.use_sgd();
+		optimizer.set_learning_rate(learning_rate);
+		SoftmaxClassifierOptimizer loss = new SoftmaxClassifierOptimizer(optimizer);
+		long position = 0;
+		for(int sample = 0; sample < samples; sample++) {
+			long deadline = System.nanoTime() + nanos;
+			while(System.nanoTime() - deadline < 0) {
+				int batch = (int) (position++ % batches);
+				loss.update_parameters(inputs[batch], labels[batch]);
+			}
+			double[] evaluation = evaluate(classifier, features, test_indices, test_labels);
+			results[sample][3] = evaluation[0];
+			results[sample][4] = evaluation[1];
+		}
+
+		for(double[] row : results) {
+			System.out.println(String.format("%.2fs: %d workers loss %.4f accuracy %.3f, synchronous loss %.4f accuracy %.3f",
+				row[0], workers, row[1], row[2], row[3], row[4]));
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the average cross entropy and the accuracy of a classifier on one-hot items
+	 */
+	protected static double[] evaluate(VectorFunction classifier, int features, int[][] indices, int[] labels) {
+		double loss = 0;
+		int correct = 0;
+		double[] row = new double[features];
+		for(int item = 0; item < indices.length; item++) {
+			for(int index : indices[item]) row[index] = 1;
+			double[] output = classifier.pass(row);
+			for(int index : indices[item]) row[index] = 0;
+			int best = 0;
+			for(int c = 1; c < output.length; c++) {
+				if(output[c] > output[best]) best = c;
+			}
+			if(best == labels[item]) correct++;
+			loss -= Math.log(Math.max(output[labels[item]], Double.MIN_NORMAL));
+		}
+		return new double[] { loss / indices.length, correct / (double) indices.length };
+	}
+
+	/**
+	 * Returns the class most of the given features belong to, preferring lower classes on ties
+	 */
+	protected static int vote(int[] feature_class, int classes, int[] indices) {
+		int[] votes = new int[classes];
+		for(int index : indices) {
+			votes[feature_class[index]]++;
+		}
+		int best = 0;
+		for(int c = 1; c < classes; c++) {
+			if(votes[c] > votes[best]) best = c;
+		}
+		return best;
+	}
+
+	/**
+	 * Draws distinct active features of one item
+	 */
+	protected static void draw(Random random, int features, int[] indices, double[] values) {
+		for(int i = 0; i < indices.length; i++) {
+			boolean repeated;
+			do {
+				indices[i] = random.nextInt(features);
+				repeated = false;
+				for(int j = 0; j < i; j++) {
+					repeated |= indices[j] == indices[i];
+				}
+			} while(repeated);
+			values[i] = 1;
+		}
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the number of workers
+	 */
+	public int worker_count() {
+		return optimizers.length;
+	}
+
+	/**
+	 * Returns the optimizer of a worker. Loss functions can be wrapped around it before training starts.
+	 */
+	public FunctionOptimizer optimizer(int worker) {
+		return optimizers[worker];
+	}
+
+	/**
+	 * Returns the number of steps finished by all workers so far
+	 */
+	public long step_count() {
+		return step_count.get();
+	}
+
+	/**
+	 * Sets the optimization strategy of every worker to Adam if training has not started yet
+	 */
+	public void use_adam(double first_moment_bias, double second_moment_bias, double protection) {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.use_adam(first_moment_bias, second_moment_bias, protection);
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy of every worker to RMSProp if training has not started yet
+	 */
+	public void use_rmsprop(double protection, double decay) {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.use_rmsprop(protection, decay);
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy of every worker to ADAGrad if training has not started yet
+	 */
+	public void use_adagrad(double protection) {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.use_adagrad(protection);
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy of every worker to SGD+momentum if training has not started yet
+	 */
+	public void use_sgd_momentum(double decay) {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.use_sgd_momentum(decay);
+		}
+	}
+
+	/**
+	 * Sets the optimization strategy of every worker to stochastic gradient descent if training has not started yet
+	 */
+	public void use_sgd() {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.use_sgd();
+		}
+	}
+
+	/**
+	 * Sets the learning rate of every worker if training has not started yet
+	 */
+	public void set_learning_rate(double val) {
+		for(FunctionOptimizer opt : optimizers) {
+			opt.set_learning_rate(val);
+		}
+	}
+
+	/**
+	 * Runs the given number of steps on every worker and waits for all of them to finish
+	 */
+	public void train(long steps, Step step) {
+		run(step, steps, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs steps on every worker until the given time has passed. Steps already started are finished. Returns the number of
+	 * steps run by all workers together.
+	 */
+	public long train_for(long duration, TimeUnit unit, Step step) {
+		long before = step_count.get();
+		run(step, Long.MAX_VALUE, System.nanoTime() + unit.toNanos(duration));
+		return step_count.get() - before;
+	}
+
+	/**
+	 * Starts one thread per worker. Parallel regions inside a step run serially on the worker's thread, so workers never
+	 * wait on each other. If a step fails, the other workers stop after their current step and the failure is rethrown.
+	 */
+	protected void run(Step step, long steps, long deadline) {
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[optimizers.length];
+		for(int worker = 0; worker < optimizers.length; worker++) {
+			threads[worker] = new Thread(new WorkerUnit(step, worker, steps, deadline, failure), "apple_lib-hogwild-" + worker);
+			threads[worker].setDaemon(true);
+			threads[worker].start();
+		}
+
+		try {
+			for(Thread thread : threads) {
+				thread.join();
+			}
+		} catch(InterruptedException ie) {
+			failure.compareAndSet(null, ie);
+			for(Thread thread : threads) {
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+
+		Throwable t = failure.get();
+		if(t == null) return;
+		if(t instanceof RuntimeException) throw (RuntimeException) t;
+		if(t instanceof Error) throw (Error) t;
+		throw new RuntimeException(t);
+	}
+
+	/**
+	 * A single training step of one worker. Implementations pick their own minibatch and pass it to the optimizer, either
+	 * directly or through a loss function.
+	 */
+	public interface Step {
+		public void run(FunctionOptimizer optimizer, int worker, long step);
+	}
+
+	// MULTITHREADING //
+
+	protected class WorkerUnit implements Runnable {
+		Step step;
+		int worker;
+		long steps, deadline;
+		AtomicReference<Throwable> failure;
+		WorkerUnit(Step s, int w, long count, long end, AtomicReference<Throwable> fail) {
+			step = s;
+			worker = w;
+			steps = count;
+			deadline = end;
+			failure = fail;
+		}
+		@Override
+		public void run() {
+			ComputePool.run_serial(() -> {
+				try {
+					for(long index = 0; index < steps && failure.get() == null; index++) {
+						if(deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) break;
+						if(Thread.currentThread().isInterrupted()) break;
+						step.run(optimizers[worker], worker, index);
+						step_count.incrementAndGet();
+					}
+				} catch(Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+		}
+	}
+
+}
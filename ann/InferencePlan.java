@@ -0,0 +1,427 @@
+package apple_lib.ann;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import apple_lib.function.Batch;
+import apple_lib.function.MatrixKernels;
+import apple_lib.function.ScalarFunction;
+import apple_lib.function.VectorFunction;
+import apple_lib.function.Workspace;
+
+/**
+ * Compiled forward pass of a trained network. Compiling flattens nested series and rewrites the layers into a short list of
+ * stages:
+ *
+ *  - Batch normalization becomes a per-dimension scale and shift, which is folded into the weights of a neighbouring affine
+ *    function whenever no activation sits between them.
+ *  - Elementwise activations are applied in place to the output of the stage before them, while it is still in cache.
+ *    Affine stages apply them to each block of rows as soon as the block is computed.
+ *  - Every intermediate buffer is allocated up front, so passes never allocate. Layers without a compiled form are passed
+ *    one row at a time with a workspace, so they only allocate if their own allocation-free pass does.
+ *
+ * Weights are copied when compiling, so later training does not change a plan. A plan may only be used by one thread at a
+ * time. Use copy to create plans for other threads that share the same weights.
+ */
+public class InferencePlan {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Sizes */
+	public final int input_size, output_size;
+
+	/* Largest number of items passed at once. Larger batches are split. */
+	public final int max_batch;
+
+	/* Compiled stages. Shared between copies. */
+	protected final Stage[] stages;
+
+	/* Output of every stage except the last. Each holds max_batch rows. */
+	protected final double[][] buffers;
+
+	/* Staging for batches that are not contiguous or larger than max_batch */
+	protected final double[] input_staging, output_staging;
+
+	/* Row buffers and workspace of every generic stage. Null for other stages. */
+	protected final double[][] row_inputs, row_outputs;
+	protected final Workspace[] workspaces;
+
+	/* Rows of an affine stage computed before its activations are applied */
+	protected static final int ROW_BLOCK = 64;
+
+	/* Stage types */
+	protected static final int AFFINE = 0, SCALE = 1, ACTIVATION = 2, SOFTMAX = 3, RESIDUAL = 4, GENERIC = 5;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Allocates the buffers of a list of compiled stages
+	 */
+	protected InferencePlan(Stage[] stages, int input_size, int max_batch) {
+		this.stages = stages;
+		this.input_size = input_size;
+		this.max_batch = max_batch;
+		output_size = stages[stages.length - 1].output_size;
+
+		buffers = new double[stages.length - 1][];
+		for(int stage = 0; stage < buffers.length; stage++) {
+			buffers[stage] = new double[max_batch * stages[stage].output_size];
+		}
+		input_staging = new double[max_batch * input_size];
+		output_staging = new double[max_batch * output_size];
+
+		row_inputs = new double[stages.length][];
+		row_outputs = new double[stages.length][];
+		workspaces = new Workspace[stages.length];
+		for(int stage = 0; stage < stages.length; stage++) {
+			if(stages[stage].type != GENERIC) continue;
+			row_inputs[stage] = new double[stages[stage].input_size];
+			row_outputs[stage] = new double[stages[stage].output_size];
+			workspaces[stage] = stages[stage].function.create_workspace(stages[stage].input_size);
+		}
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Compiles a network for single inputs of the given size
+	 */
+	public static InferencePlan compile(VectorFunction function, int input_size) {
+		return compile(function, input_size, 1);
+	}
+
+	/**
+	 * Compiles a network for batches of up to the given number of inputs
+	 */
+	public static InferencePlan compile(VectorFunction function, int input_size, int max_batch) {
+		if(max_batch < 1) throw new RuntimeException("Batch size must be positive");
+		ArrayList<VectorFunction> layers = new ArrayList<>();
+		flatten(function, layers);
+
+		ArrayList<Stage> stages = new ArrayList<>();
+		int size = input_size;
+		for(VectorFunction layer : layers) {
+			Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+			boolean linear = last != null && last.activations.length == 0 && (last.type == AFFINE || last.type == SCALE);
+
+			if(layer instanceof AffineFunction) {
+				AffineFunction affine = (AffineFunction) layer;
+				if(affine.input_count != size) throw new RuntimeException("Layer expects " + affine.input_count + " inputs");
+				Stage stage = affine_stage(affine);
+				if(linear && last.type == SCALE) {
+					stages.set(stages.size() - 1, fold_input(last, stage));
+				} else {
+					stages.add(stage);
+				}
+				size = affine.output_count;
+			} else if(layer instanceof BatchNormalization) {
+				BatchNormalization norm = (BatchNormalization) layer;
+				if(norm.dimensions != size) throw new RuntimeException("Layer expects " + norm.dimensions + " inputs");
+				Stage stage = scale_stage(norm);
+				if(linear) {
+					stages.set(stages.size() - 1, fold_output(last, stage));
+				} else {
+					stages.add(stage);
+				}
+			} else if(layer instanceof ScalarFunction) {
+				ScalarFunction activation = (ScalarFunction) layer;
+				if(last != null) {
+					stages.set(stages.size() - 1, last.with_activation(activation));
+				} else {
+					stages.add(new Stage(ACTIVATION, size, size, null, null, null, new ScalarFunction[] { activation }, null,
+						null));
+				}
+			} else if(layer == VectorFunction.softmax) {
+				stages.add(new Stage(SOFTMAX, size, size, null, null, null, new ScalarFunction[0], null, null));
+			} else if(layer instanceof ResidualBlock) {
+				InferencePlan body = compile(((ResidualBlock) layer).function, size, max_batch);
+				if(body.output_size != size) throw new RuntimeException("Residual block must preserve its input size");
+				stages.add(new Stage(RESIDUAL, size, size, null, null, null, new ScalarFunction[0], body, null));
+			} else {
+				int output = layer.output_size(size);
+				stages.add(new Stage(GENERIC, size, output, null, null, null, new ScalarFunction[0], null, layer));
+				size = output;
+			}
+		}
+		return new InferencePlan(stages.toArray(new Stage[0]), input_size, max_batch);
+	}
+
+	/**
+	 * Adds the layers of a function to the list, expanding nested series
+	 */
+	protected static void flatten(VectorFunction function, ArrayList<VectorFunction> layers) {
+		if(function instanceof FunctionSeries) {
+			for(VectorFunction layer : ((FunctionSeries) function).functions) {
+				flatten(layer, layers);
+			}
+		} else {
+			layers.add(function);
+		}
+	}
+
+	/**
+	 * Copies the weights of an affine function
+	 */
+	protected static Stage affine_stage(AffineFunction affine) {
+		int I = affine.input_count, O = affine.output_count;
+		double[][] weights = new double[I][];
+		for(int in = 0; in < I; in++) {
+			weights[in] = affine.parameters[in].clone();
+		}
+		double[] bias = affine.parameters[I].clone();
+		return new Stage(AFFINE, I, O, weights, bias, null, new ScalarFunction[0], null, null);
+	}
+
+	/**
+	 * Turns the inference pass of batch normalization into a scale and shift
+	 */
+	protected static Stage scale_stage(BatchNormalization norm) {
+		int D = norm.dimensions;
+		double[] scale = new double[D], shift = new double[D];
+		for(int dim = 0; dim < D; dim++) {
+			scale[dim] = norm.output_std[dim] / Math.sqrt(norm.running_variance[dim] + norm.std_div);
+			shift[dim] = norm.output_mean[dim] - scale[dim] * norm.running_mean[dim];
+		}
+		return new Stage(SCALE, D, D, null, shift, scale, new ScalarFunction[0], null, null);
+	}
+
+	/**
+	 * Folds a scale and shift into the output of an affine or scale stage. Neither may have activations.
+	 */
+	protected static Stage fold_output(Stage stage, Stage norm) {
+		double[] scale = norm.scale, shift = norm.bias;
+		int O = stage.output_size;
+		double[] bias = new double[O];
+		for(int out = 0; out < O; out++) {
+			bias[out] = stage.bias[out] * scale[out] + shift[out];
+		}
+		if(stage.type == SCALE) {
+			double[] combined = new double[O];
+			for(int out = 0; out < O; out++) {
+				combined[out] = stage.scale[out] * scale[out];
+			}
+			return new Stage(SCALE, O, O, null, bias, combined, new ScalarFunction[0], null, null);
+		}
+
+		// Every weight feeding output o is scaled by the same factor
+		double[][] weights = new double[stage.input_size][O];
+		for(int in = 0; in < stage.input_size; in++) {
+			for(int out = 0; out < O; out++) {
+				weights[in][out] = stage.weights[in][out] * scale[out];
+			}
+		}
+		return new Stage(AFFINE, stage.input_size, O, weights, bias, null, new ScalarFunction[0], null, null);
+	}
+
+	/**
+	 * Folds a scale and shift without activations into the input of an affine stage
+	 */
+	protected static Stage fold_input(Stage norm, Stage affine) {
+		int I = affine.input_size, O = affine.output_size;
+		double[][] weights = new double[I][O];
+		double[] bias = affine.bias.clone();
+		for(int in = 0; in < I; in++) {
+			for(int out = 0; out < O; out++) {
+				weights[in][out] = affine.weights[in][out] * norm.scale[in];
+				bias[out] += affine.weights[in][out] * norm.bias[in];
+			}
+		}
+		return new Stage(AFFINE, I, O, weights, bias, null, new ScalarFunction[0], null, null);
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a plan with its own buffers that shares the compiled weights of this one
+	 */
+	public InferencePlan copy() {
+		Stage[] copies = new Stage[stages.length];
+		for(int stage = 0; stage < stages.length; stage++) {
+			Stage original = stages[stage];
+			copies[stage] = original.body == null ? original : new Stage(original.type, original.input_size,
+				original.output_size, null, null, null, original.activations, original.body.copy(), null);
+		}
+		return new InferencePlan(copies, input_size, max_batch);
+	}
+
+	/**
+	 * Passes a single input
+	 */
+	public double[] pass(double[] input) {
+		return pass(input, new double[output_size]);
+	}
+
+	/**
+	 * Passes a single input into the given output array
+	 */
+	public double[] pass(double[] input, double[] output) {
+		if(input.length != input_size) throw new RuntimeException("Plan expects " + input_size + " inputs");
+		run(input, output, 1);
+		return output;
+	}
+
+	/**
+	 * Passes a batch of inputs
+	 */
+	public Batch pass_all(Batch inputs) {
+		return pass_all(inputs, new Batch(inputs.rows, output_size));
+	}
+
+	/**
+	 * Passes a batch of inputs into the given output batch. Batches larger than the maximum batch size are passed in chunks.
+	 */
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		if(inputs.columns != input_size) throw new RuntimeException("Plan expects " + input_size + " inputs");
+		if(inputs.rows <= max_batch && inputs.is_contiguous() && outputs.is_contiguous()) {
+			run(inputs.data, outputs.data, inputs.rows);
+			return outputs;
+		}
+
+		for(int start = 0; start < inputs.rows; start += max_batch) {
+			int rows = Math.min(max_batch, inputs.rows - start);
+			for(int row = 0; row < rows; row++) {
+				inputs.get_row(start + row, input_staging, row * input_size);
+			}
+			run(input_staging, output_staging, rows);
+			for(int row = 0; row < rows; row++) {
+				outputs.set_row(start + row, output_staging, row * output_size);
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Runs every stage on the given number of rows. Inputs and outputs are stored flat and row-major.
+	 */
+	protected void run(double[] input, double[] output, int rows) {
+		double[] current = input;
+		for(int index = 0; index < stages.length; index++) {
+			double[] next = index < buffers.length ? buffers[index] : output;
+			Stage stage = stages[index];
+			int I = stage.input_size, O = stage.output_size, applied = 0;
+			switch(stage.type) {
+				case AFFINE:
+				for(int block = 0; block < rows; block += ROW_BLOCK) {
+					int block_end = Math.min(block + ROW_BLOCK, rows);
+					for(int row = block; row < block_end; row++) {
+						System.arraycopy(stage.bias, 0, next, row * O, O);
+					}
+					if(rows > 1) {
+						MatrixKernels.multiply(current, stage.weights, next, I, O, block, block_end);
+					} else {
+						multiply_row(current, stage.weights, next, I, O);
+					}
+					for(ScalarFunction activation : stage.activations) {
+						activation.pass_range(next, next, block * O, block_end * O);
+					}
+				}
+				applied = stage.activations.length;
+				break;
+
+				case SCALE:
+				for(int row = 0; row < rows; row++) {
+					int base = row * O;
+					for(int dim = 0; dim < O; dim++) {
+						next[base + dim] = current[base + dim] * stage.scale[dim] + stage.bias[dim];
+					}
+				}
+				break;
+
+				case ACTIVATION:
+				stage.activations[0].pass_range(current, next, 0, rows * O);
+				applied = 1;
+				break;
+
+				case SOFTMAX:
+				for(int row = 0; row < rows; row++) {
+					softmax(current, next, row * O, O);
+				}
+				break;
+
+				case RESIDUAL:
+				stage.body.run(current, next, rows);
+				for(int i = 0; i < rows * O; i++) {
+					next[i] += current[i];
+				}
+				break;
+
+				case GENERIC:
+				double[] row_input = row_inputs[index], row_output = row_outputs[index];
+				for(int row = 0; row < rows; row++) {
+					System.arraycopy(current, row * I, row_input, 0, I);
+					stage.function.pass(row_input, row_output, workspaces[index]);
+					System.arraycopy(row_output, 0, next, row * O, O);
+				}
+				break;
+			}
+
+			// Activations of other stages run in place while the stage output is still in cache
+			for(int activation = applied; activation < stage.activations.length; activation++) {
+				stage.activations[activation].pass_range(next, next, 0, rows * O);
+			}
+			current = next;
+		}
+	}
+
+	/**
+	 * Accumulates a single row times the weights. A single row streams through the weights once, so blocking only adds
+	 * overhead.
+	 */
+	protected static void multiply_row(double[] input, double[][] weights, double[] output, int I, int O) {
+		for(int in = 0; in < I; in++) {
+			double value = input[in];
+			double[] weight_row = weights[in];
+			for(int out = 0; out < O; out++) {
+				output[out] += value * weight_row[out];
+			}
+		}
+	}
+
+	/**
+	 * Softmax of one row. Matches VectorFunction.softmax.
+	 */
+	protected static void softmax(double[] input, double[] output, int base, int N) {
+		if(N == 0) return;
+		double max = input[base];
+		for(int i = 1; i < N; i++) {
+			max = input[base + i] > max ? input[base + i] : max;
+		}
+		double sum = 0;
+		for(int i = 0; i < N; i++) {
+			output[base + i] = Math.exp(input[base + i] - max);
+			sum += output[base + i];
+		}
+		for(int i = 0; i < N; i++) {
+			output[base + i] /= sum;
+		}
+	}
+
+	// COMPILED STAGES //
+
+	protected static final class Stage {
+		final int type, input_size, output_size;
+		final double[][] weights;
+		final double[] bias, scale;
+		final ScalarFunction[] activations;
+		final InferencePlan body;
+		final VectorFunction function;
+		Stage(int kind, int in, int out, double[][] w, double[] b, double[] s, ScalarFunction[] act, InferencePlan inner,
+				VectorFunction func) {
+			type = kind;
+			input_size = in;
+			output_size = out;
+			weights = w;
+			bias = b;
+			scale = s;
+			activations = act;
+			body = inner;
+			function = func;
+		}
+		Stage with_activation(ScalarFunction activation) {
+			ScalarFunction[] combined = Arrays.copyOf(activations, activations.length + 1);
+			combined[activations.length] = activation;
+			return new Stage(type, input_size, output_size, weights, bias, scale, combined, body, function);
+		}
+	}
+
+}
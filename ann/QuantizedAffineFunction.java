@@ -0,0 +1,256 @@
+package apple_lib.ann;
+
+import java.util.Random;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
+import apple_lib.function.QuantizedKernels;
+import apple_lib.function.VectorFunction;
+
+/**
+ * Affine function with weights quantized to 8-bit integers for inference. Every output has its own weight scale, and inputs
+ * are quantized with a single scale found by calibrating on sample inputs. Products are accumulated in 32-bit integers and
+ * rescaled once per output. The bias is kept in full precision. Uses an eighth of the memory of an affine function.
+ *
+ * The layer is not trained. Derivatives use the dequantized weights and ignore rounding of the inputs.
+ */
+public class QuantizedAffineFunction extends VectorFunction {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Sizes */
+	public final int input_count, output_count;
+
+	/* Weights of every output stored contiguously. Entry (out, in) is stored at out * input_count + in. */
+	protected final byte[] weights;
+
+	/* Bias and scale of the weights of every output */
+	protected final double[] bias, weight_scale;
+
+	/* Scale of the inputs, and the product of both scales for every output */
+	protected final double input_scale;
+	protected final double[] output_scale;
+
+	/* Largest quantized magnitude */
+	protected static final int LEVELS = 127;
+
+	/* Quantized input of the current thread. Grown as needed so passes do not allocate. */
+	protected static final ThreadLocal<byte[]> quantized_block = ThreadLocal.withInitial(() -> new byte[0]);
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Quantizes an affine function. The input scale is chosen so the largest input of the calibration batch is still
+	 * represented. Larger inputs are clipped.
+	 */
+	public QuantizedAffineFunction(AffineFunction source, Batch calibration) {
+		input_count = source.input_count;
+		output_count = source.output_count;
+		if(input_count > Integer.MAX_VALUE / (LEVELS * LEVELS)) throw new RuntimeException("Too many inputs to accumulate");
+		if(calibration.columns != input_count) throw new RuntimeException("Calibration batch has the wrong width");
+
+		double largest = 0;
+		for(int row = 0; row < calibration.rows; row++) {
+			for(int column = 0; column < calibration.columns; column++) {
+				largest = Math.max(largest, Math.abs(calibration.get(row, column)));
+			}
+		}
+		input_scale = largest > 0 ? largest / LEVELS : 1;
+
+		weights = new byte[output_count * input_count];
+		bias = source.parameters[input_count].clone();
+		weight_scale = new double[output_count];
+		output_scale = new double[output_count];
+		for(int out = 0; out < output_count; out++) {
+			double max = 0;
+			for(int in = 0; in < input_count; in++) {
+				max = Math.max(max, Math.abs(source.parameters[in][out]));
+			}
+			weight_scale[out] = max > 0 ? max / LEVELS : 1;
+			output_scale[out] = input_scale * weight_scale[out];
+			for(int in = 0; in < input_count; in++) {
+				weights[out * input_count + in] = (byte) Math.round(source.parameters[in][out] / weight_scale[out]);
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Returns a copy of a network with every affine function quantized. Each one is calibrated on the values the sample
+	 * inputs produce at that point of the network. Other layers are shared with the original.
+	 */
+	public static VectorFunction quantize(VectorFunction function, double[][] sample) {
+		if(function instanceof AffineFunction) return new QuantizedAffineFunction((AffineFunction) function, Batch.of(sample));
+		if(function instanceof ResidualBlock) return new ResidualBlock(quantize(((ResidualBlock) function).function, sample));
+		if(!(function instanceof FunctionSeries)) return function;
+
+		VectorFunction[] layers = ((FunctionSeries) function).functions;
+		VectorFunction[] quantized = new VectorFunction[layers.length];
+		for(int layer = 0; layer < layers.length; layer++) {
+			quantized[layer] = quantize(layers[layer], sample);
+
+			// Calibrate later layers on what the quantized layers actually produce. Items are passed one at a time so
+			// layers like batch normalization behave as they do at inference.
+			double[][] next = new double[sample.length][];
+			for(int item = 0; item < sample.length; item++) {
+				next[item] = quantized[layer].pass(sample[item]);
+			}
+			sample = next;
+		}
+		return new FunctionSeries(quantized);
+	}
+
+	/**
+	 * Compares a random affine function against its quantized copy on Gaussian inputs, calibrated on the inputs themselves.
+	 * Returns the largest output error relative to the largest output, and the items per second of the double-precision
+	 * and quantized batched passes, and prints them.
+	 */
+	public static double[] compare(int inputs, int outputs, int items, int repeats) {
+		Random random = new Random(1);
+		Batch batch = new Batch(items, inputs);
+		for(int i = 0; i < batch.data.length; i++) {
+			batch.data[i] = random.nextGaussian();
+		}
+		AffineFunction exact = new AffineFunction(inputs, outputs);
+		QuantizedAffineFunction quantized = new QuantizedAffineFunction(exact, batch);
+		Batch expected = new Batch(items, outputs), actual = new Batch(items, outputs);
+
+		double[] seconds = new double[2];
+		VectorFunction[] functions = { exact, quantized };
+		Batch[] results = { expected, actual };
+		for(int f = 0; f < functions.length; f++) {
+			// The first pass only warms up
+			for(int repeat = 0; repeat <= repeats; repeat++) {
+				long start = System.nanoTime();
+				functions[f].pass_all(batch, results[f]);
+				if(repeat > 0) seconds[f] += (System.nanoTime() - start) * 1e-9;
+			}
+		}
+
+		double[] result = { Batch.relative_difference(expected, actual), items * repeats / seconds[0],
+			items * repeats / seconds[1] };
+		System.out.println(String.format("%d x %d: relative error %.2e, double %.0f items/s, quantized %.0f items/s (%.2fx)",
+			inputs, outputs, result[0], result[1], result[2], result[2] / result[1]));
+		return result;
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public double[] pass(double[] input) {
+		return pass(input, new double[output_count]);
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output) {
+		byte[] quantized = quantized_buffer(input_count);
+		quantize_row(input, 0, quantized);
+		multiply_row(quantized, output, 0);
+		return output;
+	}
+
+	@Override
+	public double[][] backpropagate(double[] input) {
+		double[][] output = new double[output_count][input_count];
+		for(int out = 0; out < output_count; out++) {
+			for(int in = 0; in < input_count; in++) {
+				output[out][in] = weights[out * input_count + in] * weight_scale[out];
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		double[] output = new double[input_count];
+		for(int out = 0; out < output_count; out++) {
+			double value = upstream[out] * weight_scale[out];
+			int base = out * input_count;
+			for(int in = 0; in < input_count; in++) {
+				output[in] += value * weights[base + in];
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public int output_size(int input_size) {
+		return output_count;
+	}
+
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		if(!inputs.is_contiguous() || !outputs.is_contiguous()) return super.pass_all(inputs, outputs);
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new QuantizedForwardUnit(inputs.data, outputs.data, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Returns the quantized input buffer of the current thread, with at least the given length
+	 */
+	protected static byte[] quantized_buffer(int length) {
+		byte[] buffer = quantized_block.get();
+		if(buffer.length < length) {
+			buffer = new byte[length];
+			quantized_block.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Rounds one input to the nearest quantization level, clipping values outside the calibrated range
+	 */
+	protected void quantize_row(double[] input, int base, byte[] quantized) {
+		double inverse = 1 / input_scale;
+		for(int in = 0; in < input_count; in++) {
+			long level = Math.round(input[base + in] * inverse);
+			quantized[in] = (byte) Math.max(-LEVELS, Math.min(LEVELS, level));
+		}
+	}
+
+	/**
+	 * Writes the outputs of one quantized input, starting at the given position of the output array
+	 */
+	protected void multiply_row(byte[] quantized, double[] output, int base) {
+		QuantizedKernels kernels = QuantizedKernels.instance;
+		for(int out = 0; out < output_count; out++) {
+			int sum = kernels.dot(quantized, 0, weights, out * input_count, input_count);
+			output[base + out] = bias[out] + sum * output_scale[out];
+		}
+	}
+
+	// MULTITHREADING //
+
+	protected class QuantizedForwardUnit implements Runnable {
+		double[] inputs, outputs;
+		int start, stop;
+		QuantizedForwardUnit(double[] in, double[] out, int begin, int end) {
+			inputs = in;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			byte[] quantized = quantized_buffer(input_count);
+			for(int item = start; item < stop; item++) {
+				if((item - start) % 64 == 0) ComputePool.checkpoint();
+				quantize_row(inputs, item * input_count, quantized);
+				multiply_row(quantized, outputs, item * output_count);
+			}
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package apple_lib.ann;
 
+import apple_lib.function.Batch;
 import apple_lib.function.VectorFunction;
+import apple_lib.function.Workspace;
 
 /**
  * Residual block. Adds input to output. 
@@ -31,6 +33,31 @@ public class ResidualBlock extends VectorFunction {
 		return output;
 	}
 
+	@Override
+	public double[] pass(double[] input, double[] output) {
+		if(output == input) throw new RuntimeException("Residual output must not be the input array");
+		function.pass(input, output);
+		for(int i = 0; i < input.length; i++) {
+			output[i] += input[i];
+		}
+		return output;
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output, Workspace workspace) {
+		if(output == input) throw new RuntimeException("Residual output must not be the input array");
+		function.pass(input, output, workspace);
+		for(int i = 0; i < input.length; i++) {
+			output[i] += input[i];
+		}
+		return output;
+	}
+
+	@Override
+	public Workspace create_workspace(int input_size) {
+		return function.create_workspace(input_size);
+	}
+
 	@Override
 	public double[][] backpropagate(double[] input) {
 		double[][] output = function.backpropagate(input);
@@ -40,5 +67,93 @@ public class ResidualBlock extends VectorFunction {
 		return output;
 	}
 
-}
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		double[] output = function.vjp(input, upstream);
+		for(int i = 0; i < output.length; i++) {
+			output[i] += upstream[i];
+		}
+		return output;
+	}
+
+	@Override
+	public double[][] vjp(double[] input, double[][] upstream) {
+		double[][] output = function.vjp(input, upstream);
+		for(int row = 0; row < output.length; row++) {
+			for(int i = 0; i < output[row].length; i++) {
+				output[row][i] += upstream[row][i];
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public double[] jvp(double[] input, double[] tangent) {
+		double[] output = function.jvp(input, tangent);
+		for(int i = 0; i < output.length; i++) {
+			output[i] += tangent[i];
+		}
+		return output;
+	}
+
+	@Override
+	public int output_size(int input_size) {
+		return input_size;
+	}
+
+	@Override
+	public double[][] pass_all(double[][] inputs) {
+		double[][] outputs = function.pass_all(inputs);
+		for(int item = 0; item < inputs.length; item++) {
+			for(int i = 0; i < inputs[item].length; i++) {
+				outputs[item][i] += inputs[item][i];
+			}
+		}
+		return outputs;
+	}
+
+	@Override
+	public double[][] vjp_all(double[][] inputs, double[][] upstream) {
+		double[][] outputs = function.vjp_all(inputs, upstream);
+		for(int item = 0; item < upstream.length; item++) {
+			for(int i = 0; i < upstream[item].length; i++) {
+				outputs[item][i] += upstream[item][i];
+			}
+		}
+		return outputs;
+	}
 
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		function.pass_all(inputs, outputs);
+		for(int item = 0; item < inputs.rows; item++) {
+			for(int i = 0; i < inputs.columns; i++) {
+				outputs.set(item, i, outputs.get(item, i) + inputs.get(item, i));
+			}
+		}
+		return outputs;
+	}
+
+	@Override
+	public Batch infer_all(Batch inputs, Batch outputs) {
+		function.infer_all(inputs, outputs);
+		for(int item = 0; item < inputs.rows; item++) {
+			for(int i = 0; i < inputs.columns; i++) {
+				outputs.set(item, i, outputs.get(item, i) + inputs.get(item, i));
+			}
+		}
+		return outputs;
+	}
+
+	@Override
+	public Batch vjp_all(Batch inputs, Batch upstream, Batch outputs) {
+		function.vjp_all(inputs, upstream, outputs);
+		for(int item = 0; item < inputs.rows; item++) {
+			for(int i = 0; i < inputs.columns; i++) {
+				outputs.set(item, i, outputs.get(item, i) + upstream.get(item, i));
+			}
+		}
+		return outputs;
+	}
+
+}
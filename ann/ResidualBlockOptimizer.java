@@ -1,5 +1,7 @@
 package apple_lib.ann;
 
+import apple_lib.function.Batch;
+
 /**
  * Manages an optimizer for the body of a residual block. 
  */ 
@@ -10,6 +12,11 @@ public class ResidualBlockOptimizer extends FunctionOptimizer {
 	/* Core optimizer */
 	protected FunctionOptimizer optimizer;
 
+	/* Inputs of the layers of a series body recorded by the last forward pass, and the inputs of the block they belong to */
+	protected double[][][] array_tape;
+	protected Batch[] batch_tape;
+	protected Object tape_inputs;
+
 	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
 
 	/**
@@ -23,12 +30,118 @@ public class ResidualBlockOptimizer extends FunctionOptimizer {
 
 	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
 
+	@Override
+	protected FunctionOptimizer[] children() {
+		return new FunctionOptimizer[] { optimizer };
+	}
+
+	/**
+	 * Passes inputs through the block. If the body is a series, the inputs of its layers are kept for the update with the
+	 * same inputs, so the update does not pass forward again. 
+	 */
+	@Override
+	public double[][] forward(double[][] inputs) {
+		release_tape();
+		if(!(optimizer instanceof FunctionSeriesOptimizer)) return target.pass_all(inputs);
+		FunctionSeriesOptimizer series = (FunctionSeriesOptimizer) optimizer;
+		int layers = series.optimizers.length;
+		if(layers == 0) return target.pass_all(inputs);
+
+		double[][][] tape = series.forward(inputs, layers);
+		double[][] outputs = tape[layers];
+		for(int item = 0; item < outputs.length; item++) {
+			for(int i = 0; i < outputs[item].length; i++) {
+				outputs[item][i] += inputs[item][i];
+			}
+		}
+		tape[layers] = null;
+		tape_inputs = inputs;
+		array_tape = tape;
+		return outputs;
+	}
+
+	/**
+	 * Passes a contiguous batch through the block, keeping the inputs of the layers of a series body for the update
+	 */
+	@Override
+	public Batch forward(Batch inputs) {
+		release_tape();
+		if(!(optimizer instanceof FunctionSeriesOptimizer)) return target.pass_all(inputs);
+		FunctionSeriesOptimizer series = (FunctionSeriesOptimizer) optimizer;
+		int layers = series.optimizers.length;
+		if(layers == 0) return target.pass_all(inputs);
+
+		Batch[] tape = series.forward(inputs, layers);
+		Batch outputs = add(tape[layers], inputs);
+		tape[layers] = null;
+		tape_inputs = inputs;
+		batch_tape = tape;
+		return outputs;
+	}
+
+	/**
+	 * Updates the body once and adds the upstream derivative for the skip connection. The body computes its input
+	 * derivative with the weights from before its update. 
+	 */
 	@Override
 	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
-		optimizer.update_parameters(inputs, deriv);
+		double[][] inner;
+		if(array_tape != null && tape_inputs == inputs) {
+			inner = ((FunctionSeriesOptimizer) optimizer).backward(array_tape, deriv, array_tape.length - 1);
+		} else {
+			inner = optimizer.update_parameters(inputs, deriv);
+		}
+		release_tape();
+		finish_update();
 
-		return super.update_parameters(inputs, deriv);
+		for(int item = 0; item < inner.length; item++) {
+			for(int i = 0; i < inner[item].length; i++) {
+				inner[item][i] += deriv[item][i];
+			}
+		}
+		return inner;
 	}
 
-}
+	@Override
+	public Batch update_parameters(Batch inputs, Batch deriv) {
+		Batch inner;
+		if(batch_tape != null && tape_inputs == inputs) {
+			inner = ((FunctionSeriesOptimizer) optimizer).backward(batch_tape, deriv, batch_tape.length - 1);
+		} else {
+			inner = optimizer.update_parameters(inputs, deriv);
+		}
+		release_tape();
+		finish_update();
+
+		return add(inner, deriv);
+	}
+
+	/**
+	 * Forgets the tape of the last forward pass
+	 */
+	protected void release_tape() {
+		tape_inputs = null;
+		array_tape = null;
+		batch_tape = null;
+	}
+
+	/**
+	 * Adds a batch into another of the same shape. Returns the batch added to. 
+	 */
+	protected static Batch add(Batch target, Batch source) {
+		if(target.is_contiguous() && source.is_contiguous()) {
+			int length = target.rows * target.columns;
+			for(int i = 0; i < length; i++) {
+				target.data[i] += source.data[i];
+			}
+			return target;
+		}
+		for(int item = 0; item < target.rows; item++) {
+			for(int i = 0; i < target.columns; i++) {
+				target.set(item, i, target.get(item, i) + source.get(item, i));
+			}
+		}
+		return target;
+	}
 
+}
@@ -0,0 +1,458 @@
+package apple_lib.ann;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ScalarFunction;
+
+/**
+ * Sums arrays across a group of processes connected in a ring. Each process sends to the next rank and receives from the
+ * previous one. An array is split into one chunk per rank; the chunks are first reduced around the ring and then passed
+ * around again so every rank ends with the full sum. Each rank sends and receives about twice the array size, no matter how
+ * many ranks there are.
+ *
+ * Rank r listens on base_port + r. All ranks must submit arrays of the same sizes in the same order.
+ */
+public class RingAllReduce implements AutoCloseable {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Position in the ring and number of processes */
+	public final int rank, size;
+
+	/* Connections to the next and previous rank */
+	protected SocketChannel next, previous;
+
+	/* Runs submitted reductions in order, and sends while the communication thread receives */
+	protected ExecutorService communication, sender;
+
+	/* Reductions that have not been waited on */
+	protected final ArrayList<Future<?>> pending;
+
+	/* Transfer buffers */
+	protected ByteBuffer send_buffer, receive_buffer;
+	protected double[] received;
+
+	/* How long to keep trying to reach the next rank, or to wait for the previous one, in milliseconds */
+	protected static final long CONNECT_TIMEOUT = 60000;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Connects to the neighbouring ranks, waiting for them to start if needed.
+	 */
+	public RingAllReduce(int rank, int size, String host, int base_port) {
+		if(size < 1 || rank < 0 || rank >= size) throw new RuntimeException("Invalid rank " + rank + " of " + size);
+		this.rank = rank;
+		this.size = size;
+		pending = new ArrayList<>();
+		communication = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "apple_lib-all-reduce"));
+		sender = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "apple_lib-all-reduce-send"));
+		send_buffer = ByteBuffer.allocateDirect(0);
+		receive_buffer = ByteBuffer.allocateDirect(0);
+		received = new double[0];
+		if(size == 1) return;
+
+		try(ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(host, base_port + rank));
+
+			// Connecting only needs the next rank to be listening, so no rank waits on another to accept first
+			next = connect(new InetSocketAddress(host, base_port + (rank + 1) % size));
+			write_fully(next, ByteBuffer.allocate(4).putInt(0, rank));
+
+			previous = accept(server);
+			previous.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			ByteBuffer handshake = ByteBuffer.allocate(4);
+			read_fully(previous, handshake);
+			if(handshake.getInt(0) != (rank + size - 1) % size) throw new RuntimeException("Unexpected rank connected");
+		} catch(IOException ioe) {
+			close();
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	protected static Thread daemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Connects to the given address, retrying until it accepts or the timeout passes
+	 */
+	protected static SocketChannel connect(InetSocketAddress address) throws IOException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while(true) {
+			try {
+				SocketChannel channel = SocketChannel.open(address);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				return channel;
+			} catch(IOException ioe) {
+				if(System.currentTimeMillis() > deadline) throw ioe;
+				try {
+					Thread.sleep(50);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException(ie);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs one rank of the data-parallel check in its own process. Start one JVM per rank with the arguments rank, size and
+	 * base port, for example "java apple_lib.ann.RingAllReduce 0 3 45000". Exits with status 1 if the check fails.
+	 */
+	public static void main(String[] args) {
+		if(args.length != 3) throw new RuntimeException("Arguments: rank size base_port");
+		int rank = Integer.parseInt(args[0]), size = Integer.parseInt(args[1]), base_port = Integer.parseInt(args[2]);
+		boolean valid = check_rank(rank, size, "127.0.0.1", base_port, 1e-12);
+		System.out.println("Rank " + rank + " of " + size + (valid ? " passed" : " failed"));
+		if(!valid) System.exit(1);
+	}
+
+	/**
+	 * Runs the data-parallel check with the given number of ranks as threads of this process. Uses ports base_port to
+	 * base_port + size - 1. Returns whether every rank passed.
+	 */
+	public static boolean check(int size, int base_port, double tolerance) {
+		boolean[] valid = new boolean[size];
+		RuntimeException[] failures = new RuntimeException[size];
+		Thread[] ranks = new Thread[size];
+		for(int rank = 0; rank < size; rank++) {
+			int r = rank;
+			ranks[r] = new Thread(() -> {
+				try {
+					valid[r] = check_rank(r, size, "127.0.0.1", base_port, tolerance);
+				} catch(RuntimeException re) {
+					failures[r] = re;
+				}
+			});
+			ranks[r].start();
+		}
+		try {
+			for(Thread rank : ranks) {
+				rank.join();
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+		boolean all = true;
+		for(int rank = 0; rank < size; rank++) {
+			if(failures[rank] != null) throw failures[rank];
+			all &= valid[rank];
+		}
+		return all;
+	}
+
+	/**
+	 * One rank of the data-parallel check. Trains a series through a series optimizer on this rank's shard of every batch,
+	 * without flushing between updates, and checks two things:
+	 *
+	 *  - Without batch normalization, the parameters after every update match a single optimizer trained on the full
+	 *    batch with the averaged gradient.
+	 *  - With batch normalization, which normalizes each shard on its own, the parameters and running statistics of all
+	 *    replicas still match each other.
+	 */
+	protected static boolean check_rank(int rank, int size, String host, int base_port, double tolerance) {
+		int I = 6, H = 8, O = 3, N = 4 * size, steps = 5;
+		Random random = new Random(1);
+		double[][][] inputs = new double[steps][N][I], derivs = new double[steps][N][O];
+		for(int step = 0; step < steps; step++) {
+			for(int item = 0; item < N; item++) {
+				for(int i = 0; i < I; i++) inputs[step][item][i] = random.nextGaussian();
+				for(int o = 0; o < O; o++) derivs[step][item][o] = random.nextGaussian();
+			}
+		}
+
+		boolean valid = true;
+		try(RingAllReduce ring = new RingAllReduce(rank, size, host, base_port)) {
+			FunctionSeries replica = new FunctionSeries(new AffineFunction(I, H), ScalarFunction.tanh, new AffineFunction(H, O));
+			FunctionSeries reference = new FunctionSeries(new AffineFunction(I, H), ScalarFunction.tanh, new AffineFunction(H, O));
+			FunctionOptimizer optimizer = FunctionOptimizer.create_optimizer(replica);
+			FunctionOptimizer reference_optimizer = FunctionOptimizer.create_optimizer(reference);
+			optimizer.set_learning_rate(0.1);
+			reference_optimizer.set_learning_rate(0.1);
+			optimizer.set_all_reduce(ring);
+			optimizer.synchronize_parameters();
+
+			// The reference starts from the synchronized weights
+			double[] flat = flatten(optimizer);
+			unflatten(reference_optimizer, flat);
+
+			// Replica gradients are sums over their shards, so the average is the full-batch gradient divided by the size
+			for(int step = 0; step < steps; step++) {
+				Batch deriv = Batch.of(derivs[step]);
+				optimizer.update_parameters(ring.shard(Batch.of(inputs[step])), ring.shard(deriv));
+				for(int i = 0; i < deriv.data.length; i++) {
+					deriv.data[i] /= size;
+				}
+				reference_optimizer.update_parameters(Batch.of(inputs[step]), deriv);
+
+				double error = Batch.max_difference(flatten(reference_optimizer), flatten(optimizer));
+				if(!(error <= tolerance)) {
+					System.err.println(String.format("Rank %d differs from the full batch after update %d: %e", rank, step,
+						error));
+					valid = false;
+				}
+			}
+
+			FunctionSeries normalized = new FunctionSeries(new AffineFunction(I, H), new BatchNormalization(H),
+				ScalarFunction.tanh, new AffineFunction(H, O));
+			optimizer = FunctionOptimizer.create_optimizer(normalized);
+			optimizer.set_learning_rate(0.1);
+			optimizer.set_all_reduce(ring);
+			optimizer.synchronize_parameters();
+			for(int step = 0; step < steps; step++) {
+				optimizer.update_parameters(ring.shard(Batch.of(inputs[step])), ring.shard(Batch.of(derivs[step])));
+			}
+
+			// Every replica holds the mean over replicas if they all agree
+			flat = flatten(optimizer);
+			double[] mean = flat.clone();
+			ring.all_reduce(mean);
+			for(int i = 0; i < mean.length; i++) {
+				mean[i] /= size;
+			}
+			double error = Batch.max_difference(mean, flat);
+			if(!(error <= tolerance)) {
+				System.err.println(String.format("Rank %d differs from the other replicas with batch normalization: %e", rank,
+					error));
+				valid = false;
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Copies every parameter of an optimizer's function, including running statistics, into one array
+	 */
+	protected static double[] flatten(FunctionOptimizer optimizer) {
+		ArrayList<double[]> arrays = new ArrayList<>();
+		optimizer.collect_parameters(arrays);
+		int length = 0;
+		for(double[] array : arrays) {
+			length += array.length;
+		}
+		double[] flat = new double[length];
+		int position = 0;
+		for(double[] array : arrays) {
+			System.arraycopy(array, 0, flat, position, array.length);
+			position += array.length;
+		}
+		return flat;
+	}
+
+	/**
+	 * Copies an array made by flatten back into the parameters of an optimizer's function
+	 */
+	protected static void unflatten(FunctionOptimizer optimizer, double[] flat) {
+		ArrayList<double[]> arrays = new ArrayList<>();
+		optimizer.collect_parameters(arrays);
+		int position = 0;
+		for(double[] array : arrays) {
+			System.arraycopy(flat, position, array, 0, array.length);
+			position += array.length;
+		}
+	}
+
+	/**
+	 * Accepts the previous rank, polling until it connects or the timeout passes
+	 */
+	protected static SocketChannel accept(ServerSocketChannel server) throws IOException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		server.configureBlocking(false);
+		while(true) {
+			SocketChannel channel = server.accept();
+			if(channel != null) {
+				channel.configureBlocking(true);
+				return channel;
+			}
+			if(System.currentTimeMillis() > deadline) throw new IOException("Previous rank did not connect in time");
+			try {
+				Thread.sleep(10);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException(ie);
+			}
+		}
+	}
+
+	protected static void write_fully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	protected static void read_fully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer) < 0) throw new IOException("Connection closed by peer");
+		}
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the first item of this rank's shard of a batch with the given number of items
+	 */
+	public int shard_start(int items) {
+		return (int) ((long) items * rank / size);
+	}
+
+	/**
+	 * Returns the end of this rank's shard of a batch with the given number of items
+	 */
+	public int shard_end(int items) {
+		return (int) ((long) items * (rank + 1) / size);
+	}
+
+	/**
+	 * Returns a view of this rank's rows of a batch
+	 */
+	public Batch shard(Batch batch) {
+		int start = shard_start(batch.rows), end = shard_end(batch.rows);
+		return new Batch(batch.data, end - start, batch.columns, batch.offset + start * batch.row_stride, batch.row_stride,
+			batch.column_stride);
+	}
+
+	/**
+	 * Replaces the array on every rank with the sum over all ranks. Waits for any submitted reductions first.
+	 */
+	public void all_reduce(double[] data) {
+		submit(data, null);
+		flush();
+	}
+
+	/**
+	 * Replaces the array on every rank with its contents on rank zero
+	 */
+	public void broadcast(double[] data) {
+		if(rank != 0) Arrays.fill(data, 0);
+		all_reduce(data);
+	}
+
+	/**
+	 * Queues a reduction. Once the array holds the sum, the given action runs on the communication thread. Reductions
+	 * run in submission order, so the calling thread can keep computing while earlier arrays are exchanged.
+	 */
+	public synchronized Future<?> submit(double[] data, Runnable then) {
+		Future<?> future = communication.submit(() -> {
+			reduce(data);
+			if(then != null) then.run();
+			return null;
+		});
+		pending.add(future);
+		return future;
+	}
+
+	/**
+	 * Waits for every submitted reduction and its action. Failures are rethrown on the calling thread.
+	 */
+	public synchronized void flush() {
+		try {
+			for(Future<?> future : pending) {
+				future.get();
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		} catch(ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+			throw new RuntimeException(ee.getCause());
+		} finally {
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Ring reduction of a single array. Only called on the communication thread.
+	 */
+	protected void reduce(double[] data) throws IOException, InterruptedException, ExecutionException {
+		if(size == 1) return;
+		int longest = (data.length + size - 1) / size;
+		if(send_buffer.capacity() < longest * 8) {
+			send_buffer = ByteBuffer.allocateDirect(longest * 8);
+			receive_buffer = ByteBuffer.allocateDirect(longest * 8);
+			received = new double[longest];
+		}
+
+		// Reduce-scatter: after size - 1 steps this rank holds the full sum of chunk rank + 1
+		for(int step = 0; step < size - 1; step++) {
+			exchange(data, (rank - step + size) % size, (rank - step - 1 + size) % size, true);
+		}
+
+		// All-gather: pass the finished chunks around the ring
+		for(int step = 0; step < size - 1; step++) {
+			exchange(data, (rank - step + 1 + size) % size, (rank - step + size) % size, false);
+		}
+	}
+
+	/**
+	 * Sends one chunk to the next rank while receiving another from the previous rank. Received values are either added
+	 * to or copied into the array.
+	 */
+	protected void exchange(double[] data, int send_chunk, int receive_chunk, boolean add) throws IOException,
+			InterruptedException, ExecutionException {
+		int send_start = chunk_start(data.length, send_chunk), send_end = chunk_start(data.length, send_chunk + 1);
+		int receive_start = chunk_start(data.length, receive_chunk);
+		int receive_end = chunk_start(data.length, receive_chunk + 1);
+
+		send_buffer.clear();
+		send_buffer.asDoubleBuffer().put(data, send_start, send_end - send_start);
+		send_buffer.limit((send_end - send_start) * 8);
+		Future<?> sent = sender.submit(() -> {
+			write_fully(next, send_buffer);
+			return null;
+		});
+
+		receive_buffer.clear();
+		receive_buffer.limit((receive_end - receive_start) * 8);
+		read_fully(previous, receive_buffer);
+		receive_buffer.flip();
+		int count = receive_end - receive_start;
+		if(add) {
+			receive_buffer.asDoubleBuffer().get(received, 0, count);
+			for(int i = 0; i < count; i++) {
+				data[receive_start + i] += received[i];
+			}
+		} else {
+			receive_buffer.asDoubleBuffer().get(data, receive_start, count);
+		}
+		sent.get();
+	}
+
+	protected int chunk_start(int length, int chunk) {
+		return (int) ((long) length * chunk / size);
+	}
+
+	/**
+	 * Closes the connections and stops the communication threads
+	 */
+	@Override
+	public void close() {
+		communication.shutdownNow();
+		sender.shutdownNow();
+		try {
+			if(next != null) next.close();
+			if(previous != null) previous.close();
+		} catch(IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+}
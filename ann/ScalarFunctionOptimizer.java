@@ -23,19 +23,7 @@ public class ScalarFunctionOptimizer extends FunctionOptimizer {
 	 * Backpropagates, but does not update any parameters
 	 */
 	public double[][] update_parameters(double[][] inputs, double[][] deriv) {
-		int N = inputs.length;
-		ScalarFunction target = (ScalarFunction) super.target;
-
-		double[][] input_deriv = new double[N][];
-		for(int item = 0; item < N; item++) {
-			input_deriv[item] = new double[inputs[item].length];
-			for(int in = 0; in < inputs[item].length; in++) {
-				input_deriv[item][in] += deriv[item][in] * target.backpropagate(inputs[item][in]);
-			}
-		}
-
-		return input_deriv;
+		return target.vjp_all(inputs, deriv);
 	}
 
 }
-
@@ -0,0 +1,205 @@
+package apple_lib.ann;
+
+import apple_lib.function.Batch;
+import apple_lib.function.ComputePool;
+import apple_lib.function.SparseBatch;
+import apple_lib.function.VectorFunction;
+
+/**
+ * Fused softmax and cross entropy loss. The derivative with respect to the logits is p - onehot, so the softmax Jacobian
+ * is never built. If the target is a series ending in softmax, the softmax layer is skipped during training. Otherwise, the
+ * target should output logits.
+ */
+public class SoftmaxClassifierOptimizer extends ClassifierOptimizer {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Number of series layers producing logits if the target ends in softmax. Otherwise, -1. */
+	protected int logit_layers;
+
+	/* Average loss of the most recent batch */
+	protected double loss;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Detects series that end in softmax.
+	 */
+	public SoftmaxClassifierOptimizer(FunctionOptimizer deriv_optimizer) {
+		super(deriv_optimizer);
+
+		logit_layers = -1;
+		if(optimizer instanceof FunctionSeriesOptimizer) {
+			VectorFunction[] functions = ((FunctionSeries) optimizer.target).functions;
+			if(functions[functions.length - 1] == VectorFunction.softmax) logit_layers = functions.length - 1;
+		}
+
+		loss = 0;
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the average cross entropy loss of the most recent batch
+	 */
+	public double get_loss() {
+		return loss;
+	}
+
+	@Override
+	public double[][] update_parameters(double[][] inputs, int[] labels) {
+		int N = inputs.length;
+		if(logit_layers < 0) {
+			double[][] logits = optimizer.forward(inputs);
+			double[][] deriv = new double[N][];
+			calculate_loss(logits, labels, deriv);
+			return optimizer.update_parameters(inputs, deriv);
+		}
+
+		FunctionSeriesOptimizer series = (FunctionSeriesOptimizer) optimizer;
+		double[][][] input_chain = series.forward(inputs, logit_layers);
+		double[][] deriv = new double[N][];
+		calculate_loss(input_chain[logit_layers], labels, deriv);
+		return series.backward(input_chain, deriv, logit_layers);
+	}
+
+	@Override
+	public Batch update_parameters(Batch inputs, int[] labels) {
+		if(logit_layers < 0) {
+			Batch logits = optimizer.forward(inputs).contiguous();
+			Batch deriv = new Batch(logits.rows, logits.columns);
+			calculate_loss(logits, labels, deriv);
+			return optimizer.update_parameters(inputs, deriv);
+		}
+
+		FunctionSeriesOptimizer series = (FunctionSeriesOptimizer) optimizer;
+		Batch[] input_chain = series.forward(inputs, logit_layers);
+		Batch logits = input_chain[logit_layers].contiguous();
+		Batch deriv = new Batch(logits.rows, logits.columns);
+		calculate_loss(logits, labels, deriv);
+		return series.backward(input_chain, deriv, logit_layers);
+	}
+
+	@Override
+	public void update_parameters(SparseBatch inputs, int[] labels) {
+		if(logit_layers < 0) {
+			Batch logits = optimizer.target.pass_all(inputs).contiguous();
+			Batch deriv = new Batch(logits.rows, logits.columns);
+			calculate_loss(logits, labels, deriv);
+			optimizer.update_parameters(inputs, deriv);
+			return;
+		}
+
+		FunctionSeriesOptimizer series = (FunctionSeriesOptimizer) optimizer;
+		Batch[] input_chain = series.forward(inputs, logit_layers);
+		Batch logits = input_chain[logit_layers].contiguous();
+		Batch deriv = new Batch(logits.rows, logits.columns);
+		calculate_loss(logits, labels, deriv);
+		series.backward(inputs, input_chain, deriv, logit_layers);
+	}
+
+	/**
+	 * Fills in the derivatives with respect to the logits and stores the average loss
+	 */
+	protected void calculate_loss(double[][] logits, int[] labels, double[][] deriv) {
+		int N = logits.length;
+		int thread_count = ComputePool.thread_count(N);
+		LossUnit[] units = new LossUnit[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new LossUnit(logits, null, labels, deriv, null, start, end);
+		}
+		ComputePool.execute(units);
+
+		loss = 0;
+		for(LossUnit unit : units) {
+			loss += unit.loss;
+		}
+		loss /= N;
+	}
+
+	/**
+	 * Fills in the derivatives with respect to contiguous logits and stores the average loss
+	 */
+	protected void calculate_loss(Batch logits, int[] labels, Batch deriv) {
+		int N = logits.rows;
+		int thread_count = ComputePool.thread_count(N);
+		LossUnit[] units = new LossUnit[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new LossUnit(null, logits, labels, null, deriv, start, end);
+		}
+		ComputePool.execute(units);
+
+		loss = 0;
+		for(LossUnit unit : units) {
+			loss += unit.loss;
+		}
+		loss /= N;
+	}
+
+	/**
+	 * Cross entropy of a single item. Uses log-sum-exp for numerical stability. Writes the scaled derivative
+	 * (p - onehot) / N into the given array.
+	 */
+	protected static double cross_entropy(double[] logits, int offset, int classes, int label, double[] deriv, int deriv_offset, int N) {
+		double max = logits[offset];
+		for(int i = 1; i < classes; i++) {
+			max = logits[offset + i] > max ? logits[offset + i] : max;
+		}
+		double sum = 0;
+		for(int i = 0; i < classes; i++) {
+			double exp = Math.exp(logits[offset + i] - max);
+			deriv[deriv_offset + i] = exp;
+			sum += exp;
+		}
+		for(int i = 0; i < classes; i++) {
+			deriv[deriv_offset + i] /= sum * N;
+		}
+		deriv[deriv_offset + label] -= 1.0 / N;
+
+		// log(sum exp) - z_label
+		return max + Math.log(sum) - logits[offset + label];
+	}
+
+	// MULTITHREADING //
+
+	protected static class LossUnit implements Runnable {
+		double[][] logits, deriv;
+		Batch logit_batch, deriv_batch;
+		int[] labels;
+		int start, stop;
+		double loss;
+		LossUnit(double[][] in, Batch in_batch, int[] targets, double[][] out, Batch out_batch, int begin, int end) {
+			logits = in;
+			logit_batch = in_batch;
+			labels = targets;
+			deriv = out;
+			deriv_batch = out_batch;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			loss = 0;
+			if(logits != null) {
+				int N = logits.length;
+				for(int item = start; item < stop; item++) {
+					deriv[item] = new double[logits[item].length];
+					loss += cross_entropy(logits[item], 0, logits[item].length, labels[item], deriv[item], 0, N);
+				}
+			} else {
+				int N = logit_batch.rows, C = logit_batch.columns;
+				for(int item = start; item < stop; item++) {
+					loss += cross_entropy(logit_batch.data, item * C, C, labels[item], deriv_batch.data, item * C, N);
+				}
+			}
+		}
+	}
+
+}
+
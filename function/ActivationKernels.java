@@ -0,0 +1,120 @@
+package apple_lib.function;
+
+/**
+ * Bulk array kernels for the common activation functions. Each kernel processes the range [start, end) of its arrays. This
+ * class is the scalar fallback; when the jdk.incubator.vector module is available, a SIMD implementation is loaded instead.
+ */
+public class ActivationKernels {
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/* Kernels used by the built-in activation functions */
+	public static final ActivationKernels instance = load("apple_lib.function.VectorActivationKernels", new ActivationKernels());
+
+	/**
+	 * Loads the named SIMD kernels if the vector module is present and they have not been disabled through the
+	 * apple_lib.simd system property. Otherwise, returns the given scalar kernels.
+	 */
+	protected static ActivationKernels load(String name, ActivationKernels fallback) {
+		if(!Boolean.parseBoolean(System.getProperty("apple_lib.simd", "true"))) return fallback;
+		if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return fallback;
+		try {
+			Class<?> kernels = Class.forName(name);
+			return (ActivationKernels) kernels.getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e) {
+			return fallback;
+		}
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns true if the kernels use SIMD instructions
+	 */
+	public boolean is_vectorized() {
+		return false;
+	}
+
+	/* Rectified Linear Unit */
+	public void relu(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] > 0 ? input[i] : 0;
+		}
+	}
+
+	public void relu_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] > 0 ? upstream[i] : 0;
+		}
+	}
+
+	/* Logistic function */
+	public void logistic(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = 1 / (1 + Math.exp(-input[i]));
+		}
+	}
+
+	public void logistic_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = 1 / (1 + Math.exp(-input[i]));
+			output[i] = upstream[i] * activation * (1 - activation);
+		}
+	}
+
+	/* Hyperbolic tangent */
+	public void tanh(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = Math.tanh(input[i]);
+		}
+	}
+
+	public void tanh_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = Math.tanh(input[i]);
+			output[i] = upstream[i] * (1 - activation * activation);
+		}
+	}
+
+	/* Softplus function. Evaluated as max(x, 0) + log(1 + exp(-|x|)) to avoid overflow. */
+	public void softplus(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double x = input[i];
+			output[i] = (x > 0 ? x : 0) + Math.log1p(Math.exp(-Math.abs(x)));
+		}
+	}
+
+	public void softplus_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = upstream[i] / (1 + Math.exp(-input[i]));
+		}
+	}
+
+	/* Swish function */
+	public void swish(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] / (1 + Math.exp(-input[i]));
+		}
+	}
+
+	public void swish_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = 1 / (1 + Math.exp(-input[i]));
+			output[i] = upstream[i] * (activation + input[i] * activation * (1 - activation));
+		}
+	}
+
+	/* Half-logarithmic half-linear function */
+	public void loglin(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] >= 0 ? input[i] : -Math.log1p(-input[i]);
+		}
+	}
+
+	public void loglin_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] >= 0 ? upstream[i] : upstream[i] / (1 - input[i]);
+		}
+	}
+
+}
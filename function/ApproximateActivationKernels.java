@@ -0,0 +1,201 @@
+package apple_lib.function;
+
+/**
+ * Approximate activation kernels. No exponentials or logarithms are evaluated. Tanh is replaced by a rational function
+ * (the twelfth convergent of Lambert's continued fraction) that saturates to exactly one beyond |x| = 8. The logistic
+ * function, softplus and swish are derived from it, with log(1 + u) evaluated through a short atanh series. Derivatives
+ * are calculated from the approximated activations.
+ *
+ * Maximum absolute error over all inputs:
+ *  - logistic: 2e-7 (derivative 2e-7)
+ *  - tanh: 3e-7 (derivative 5e-7)
+ *  - softplus: 2e-7 (derivative 2e-7)
+ *  - swish: 3e-6 (derivative 3e-6)
+ * These bounds are verified by the check method.
+ */
+public class ApproximateActivationKernels extends ActivationKernels {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Tanh is treated as saturated beyond this magnitude */
+	protected static final double SATURATION = 8;
+
+	/* Rational approximation of tanh. Numerator is x * P(x^2) and denominator is Q(x^2). */
+	protected static final double P0 = 316234143225.0, P1 = 45831035250.0, P2 = 1571349780.0, P3 = 18378360.0;
+	protected static final double P4 = 75075.0, P5 = 78.0;
+	protected static final double Q0 = 316234143225.0, Q1 = 151242416325.0, Q2 = 9820936125.0, Q3 = 192972780.0;
+	protected static final double Q4 = 1351350.0, Q5 = 3003.0;
+
+	/* Shared instance. Uses SIMD when the vector module is present. */
+	public static final ApproximateActivationKernels instance = (ApproximateActivationKernels)
+		load("apple_lib.function.VectorApproximateActivationKernels", new ApproximateActivationKernels());
+
+	/* Documented error bounds */
+	public static final double LOGISTIC_ERROR = 2e-7, LOGISTIC_DERIV_ERROR = 2e-7;
+	public static final double TANH_ERROR = 3e-7, TANH_DERIV_ERROR = 5e-7;
+	public static final double SOFTPLUS_ERROR = 2e-7, SOFTPLUS_DERIV_ERROR = 2e-7;
+	public static final double SWISH_ERROR = 3e-6, SWISH_DERIV_ERROR = 3e-6;
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Approximate hyperbolic tangent
+	 */
+	public static double tanh(double input) {
+		if(input >= SATURATION) return 1;
+		if(input <= -SATURATION) return -1;
+		double x2 = input * input;
+		double numerator = input * (P0 + x2 * (P1 + x2 * (P2 + x2 * (P3 + x2 * (P4 + x2 * P5)))));
+		double denominator = Q0 + x2 * (Q1 + x2 * (Q2 + x2 * (Q3 + x2 * (Q4 + x2 * (Q5 + x2)))));
+		return numerator / denominator;
+	}
+
+	/**
+	 * Approximate logistic function
+	 */
+	public static double logistic(double input) {
+		return 0.5 + 0.5 * tanh(0.5 * input);
+	}
+
+	/**
+	 * Approximate softplus function. Evaluated as max(x, 0) + log(1 + u) where u = exp(-|x|) = s(-|x|) / s(|x|).
+	 */
+	public static double softplus(double input) {
+		double magnitude = Math.abs(input);
+		double upper = logistic(magnitude);
+		return (input > 0 ? input : 0) + log1p((1 - upper) / upper);
+	}
+
+	/**
+	 * Approximate log(1 + u) for u in [0, 1]. Uses log(1 + u) = 2 atanh(u / (2 + u)).
+	 */
+	protected static double log1p(double u) {
+		double z = u / (2 + u);
+		double z2 = z * z;
+		return 2 * z * (1 + z2 * (1 / 3.0 + z2 * (1 / 5.0 + z2 * (1 / 7.0 + z2 * (1 / 9.0 + z2 * (1 / 11.0))))));
+	}
+
+	/**
+	 * Samples each approximate function and its derivative on a dense grid and compares against the exact function.
+	 * Returns false if any documented error bound is exceeded.
+	 */
+	public static boolean check() {
+		ApproximateActivationKernels[] candidates = { new ApproximateActivationKernels(), instance };
+		ActivationKernels exact = new ActivationKernels();
+
+		int N = 400001;
+		double[] input = new double[N], upstream = new double[N];
+		for(int i = 0; i < N; i++) {
+			input[i] = -40 + 80.0 * i / (N - 1);
+			upstream[i] = 1;
+		}
+
+		double[] expected = new double[N], actual = new double[N];
+		boolean valid = true;
+		for(ApproximateActivationKernels approx : candidates) {
+			exact.logistic(input, expected, 0, N);
+			approx.logistic(input, actual, 0, N);
+			valid &= check_bound("logistic", expected, actual, LOGISTIC_ERROR);
+			exact.logistic_vjp(input, upstream, expected, 0, N);
+			approx.logistic_vjp(input, upstream, actual, 0, N);
+			valid &= check_bound("logistic derivative", expected, actual, LOGISTIC_DERIV_ERROR);
+
+			exact.tanh(input, expected, 0, N);
+			approx.tanh(input, actual, 0, N);
+			valid &= check_bound("tanh", expected, actual, TANH_ERROR);
+			exact.tanh_vjp(input, upstream, expected, 0, N);
+			approx.tanh_vjp(input, upstream, actual, 0, N);
+			valid &= check_bound("tanh derivative", expected, actual, TANH_DERIV_ERROR);
+
+			exact.softplus(input, expected, 0, N);
+			approx.softplus(input, actual, 0, N);
+			valid &= check_bound("softplus", expected, actual, SOFTPLUS_ERROR);
+			exact.softplus_vjp(input, upstream, expected, 0, N);
+			approx.softplus_vjp(input, upstream, actual, 0, N);
+			valid &= check_bound("softplus derivative", expected, actual, SOFTPLUS_DERIV_ERROR);
+
+			exact.swish(input, expected, 0, N);
+			approx.swish(input, actual, 0, N);
+			valid &= check_bound("swish", expected, actual, SWISH_ERROR);
+			exact.swish_vjp(input, upstream, expected, 0, N);
+			approx.swish_vjp(input, upstream, actual, 0, N);
+			valid &= check_bound("swish derivative", expected, actual, SWISH_DERIV_ERROR);
+		}
+		return valid;
+	}
+
+	/**
+	 * Compares two arrays against an absolute error bound
+	 */
+	protected static boolean check_bound(String name, double[] expected, double[] actual, double bound) {
+		double error = Batch.max_difference(expected, actual);
+		if(!(error <= bound)) {
+			System.err.println(String.format("Approximate %s failed tolerance: %e", name, error));
+			return false;
+		}
+		return true;
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public void logistic(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = logistic(input[i]);
+		}
+	}
+
+	@Override
+	public void logistic_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = logistic(input[i]);
+			output[i] = upstream[i] * activation * (1 - activation);
+		}
+	}
+
+	@Override
+	public void tanh(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = tanh(input[i]);
+		}
+	}
+
+	@Override
+	public void tanh_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = tanh(input[i]);
+			output[i] = upstream[i] * (1 - activation * activation);
+		}
+	}
+
+	@Override
+	public void softplus(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = softplus(input[i]);
+		}
+	}
+
+	@Override
+	public void softplus_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = upstream[i] * logistic(input[i]);
+		}
+	}
+
+	@Override
+	public void swish(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = input[i] * logistic(input[i]);
+		}
+	}
+
+	@Override
+	public void swish_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			double activation = logistic(input[i]);
+			output[i] = upstream[i] * (activation + input[i] * activation * (1 - activation));
+		}
+	}
+
+}
+
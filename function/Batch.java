@@ -0,0 +1,225 @@
+package apple_lib.function;
+
+/**
+ * Contiguous batch of vectors. Items are stored as rows of a single flat array so that a whole minibatch is one
+ * allocation. Views with a different layout, such as the column-major transpose, share the same storage.
+ */
+public class Batch {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Sizes */
+	public final int rows, columns;
+
+	/* Storage */
+	public final double[] data;
+
+	/* Layout. Element (r, c) is stored at data[offset + r * row_stride + c * column_stride] */
+	public final int offset, row_stride, column_stride;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Allocates a zeroed row-major batch.
+	 */
+	public Batch(int rows, int columns) {
+		this(new double[Math.multiplyExact(rows, columns)], rows, columns);
+	}
+
+	/**
+	 * Wraps an existing row-major array. The array must hold at least rows * columns entries.
+	 */
+	public Batch(double[] data, int rows, int columns) {
+		this(data, rows, columns, 0, columns, 1);
+		if(data.length < (long) rows * columns) throw new RuntimeException("Array is too small for the batch");
+	}
+
+	/**
+	 * Creates a view of an existing array with an arbitrary layout.
+	 */
+	public Batch(double[] data, int rows, int columns, int offset, int row_stride, int column_stride) {
+		if(rows < 0 || columns < 0) throw new RuntimeException("Negative batch size");
+		this.data = data;
+		this.rows = rows;
+		this.columns = columns;
+		this.offset = offset;
+		this.row_stride = row_stride;
+		this.column_stride = column_stride;
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Copies a jagged array into a new batch. All items must have the same length.
+	 */
+	public static Batch of(double[][] items) {
+		int columns = items.length == 0 ? 0 : items[0].length;
+		Batch batch = new Batch(items.length, columns);
+		for(int row = 0; row < items.length; row++) {
+			if(items[row].length != columns) throw new RuntimeException("Items have different lengths");
+			System.arraycopy(items[row], 0, batch.data, row * columns, columns);
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns true if every item has the same length, so the items can be copied into a batch
+	 */
+	public static boolean is_uniform(double[][] items) {
+		for(int row = 1; row < items.length; row++) {
+			if(items[row].length != items[0].length) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the largest absolute difference between two arrays, or NaN if any difference is NaN. Used by the checks to
+	 * compare results against a reference.
+	 */
+	public static double max_difference(double[] expected, double[] actual) {
+		double error = 0;
+		for(int i = 0; i < expected.length; i++) {
+			double difference = Math.abs(expected[i] - actual[i]);
+			if(Double.isNaN(difference)) return difference;
+			error = Math.max(error, difference);
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the largest absolute difference between two batches of the same shape, or NaN if any difference is NaN
+	 */
+	public static double max_difference(Batch expected, Batch actual) {
+		double error = 0;
+		for(int row = 0; row < expected.rows; row++) {
+			for(int column = 0; column < expected.columns; column++) {
+				double difference = Math.abs(expected.get(row, column) - actual.get(row, column));
+				if(Double.isNaN(difference)) return difference;
+				error = Math.max(error, difference);
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the largest absolute difference between two batches relative to the largest magnitude in the first
+	 */
+	public static double relative_difference(Batch expected, Batch actual) {
+		double largest = 0;
+		for(int row = 0; row < expected.rows; row++) {
+			for(int column = 0; column < expected.columns; column++) {
+				largest = Math.max(largest, Math.abs(expected.get(row, column)));
+			}
+		}
+		return max_difference(expected, actual) / largest;
+	}
+
+	/**
+	 * Returns the given buffer if it is a row-major batch of the requested size. Otherwise, allocates a new one. Used to
+	 * reuse output buffers from step to step.
+	 */
+	public static Batch reuse(Batch buffer, int rows, int columns) {
+		if(buffer != null && buffer.rows == rows && buffer.columns == columns && buffer.is_contiguous()) return buffer;
+		return new Batch(rows, columns);
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns true if the batch is stored row-major with no gaps, starting at the beginning of the array.
+	 */
+	public boolean is_contiguous() {
+		return offset == 0 && column_stride == 1 && (row_stride == columns || rows <= 1);
+	}
+
+	/**
+	 * Returns this batch if it is contiguous. Otherwise, returns a row-major copy.
+	 */
+	public Batch contiguous() {
+		return is_contiguous() ? this : copy();
+	}
+
+	/**
+	 * Creates a row-major copy of the batch.
+	 */
+	public Batch copy() {
+		Batch out = new Batch(rows, columns);
+		for(int row = 0; row < rows; row++) {
+			get_row(row, out.data, row * columns);
+		}
+		return out;
+	}
+
+	/**
+	 * Returns a transposed view sharing the same storage. The transpose of a row-major batch is column-major.
+	 */
+	public Batch transpose() {
+		return new Batch(data, columns, rows, offset, column_stride, row_stride);
+	}
+
+	/**
+	 * Accesses a single element
+	 */
+	public double get(int row, int column) {
+		return data[offset + row * row_stride + column * column_stride];
+	}
+
+	/**
+	 * Sets a single element
+	 */
+	public void set(int row, int column, double value) {
+		data[offset + row * row_stride + column * column_stride] = value;
+	}
+
+	/**
+	 * Copies a row into a new array
+	 */
+	public double[] row(int row) {
+		double[] out = new double[columns];
+		get_row(row, out, 0);
+		return out;
+	}
+
+	/**
+	 * Copies a row into the given array starting at the given position
+	 */
+	public void get_row(int row, double[] destination, int position) {
+		int index = offset + row * row_stride;
+		if(column_stride == 1) {
+			System.arraycopy(data, index, destination, position, columns);
+			return;
+		}
+		for(int column = 0; column < columns; column++) {
+			destination[position + column] = data[index];
+			index += column_stride;
+		}
+	}
+
+	/**
+	 * Overwrites a row using the given array starting at the given position
+	 */
+	public void set_row(int row, double[] source, int position) {
+		int index = offset + row * row_stride;
+		if(column_stride == 1) {
+			System.arraycopy(source, position, data, index, columns);
+			return;
+		}
+		for(int column = 0; column < columns; column++) {
+			data[index] = source[position + column];
+			index += column_stride;
+		}
+	}
+
+	/**
+	 * Copies the batch into a jagged array
+	 */
+	public double[][] to_array() {
+		double[][] out = new double[rows][];
+		for(int row = 0; row < rows; row++) {
+			out[row] = row(row);
+		}
+		return out;
+	}
+
+}
+
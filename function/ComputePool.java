@@ -0,0 +1,299 @@
+package apple_lib.function;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Library-wide execution context. All parallel regions share one long-lived pool instead of creating threads on every
+ * call. Small workloads are run serially on the calling thread.
+ */
+public class ComputePool {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Shared pool */
+	protected static ExecutorService executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/* Maximum number of units a workload is split into */
+	protected static int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/* Workloads smaller than this are run on the calling thread */
+	protected static int serial_threshold = 16;
+
+	/* Set while a thread is running work submitted through this class. Nested parallel regions run serially. */
+	protected static final ThreadLocal<Boolean> nested = ThreadLocal.withInitial(() -> false);
+
+	/* Deadline and cancellation state of the region the current thread is working in. Null outside of any region. */
+	protected static final ThreadLocal<Region> region = new ThreadLocal<>();
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	private ComputePool() {}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Replaces the shared pool with a fork-join pool of the given size. The previous pool is shut down.
+	 */
+	public static synchronized void set_parallelism(int threads) {
+		if(threads < 1) throw new RuntimeException("Parallelism must be positive");
+		ExecutorService old = executor;
+		executor = new ForkJoinPool(threads);
+		parallelism = threads;
+		old.shutdown();
+	}
+
+	/**
+	 * Replaces the shared pool with a user-provided executor. The caller remains responsible for shutting down the
+	 * previous executor if it was also user-provided.
+	 */
+	public static synchronized void set_executor(ExecutorService service, int threads) {
+		if(threads < 1) throw new RuntimeException("Parallelism must be positive");
+		executor = service;
+		parallelism = threads;
+	}
+
+	/**
+	 * Sets the workload size below which parallel regions run serially on the calling thread.
+	 */
+	public static void set_serial_threshold(int size) {
+		serial_threshold = size;
+	}
+
+	/**
+	 * Returns the workload size below which parallel regions run serially.
+	 */
+	public static int get_serial_threshold() {
+		return serial_threshold;
+	}
+
+	/**
+	 * Determines how many units a workload of the given size should be split into. Always one inside a pool task.
+	 */
+	public static int thread_count(int work) {
+		if(work < serial_threshold || nested.get()) return 1;
+		return Math.max(1, Math.min(work, parallelism));
+	}
+
+	/**
+	 * Version of thread_count for workloads measured as a product of sizes, which can exceed the range of an int
+	 */
+	public static int thread_count(long work) {
+		return thread_count((int) Math.min(work, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Runs work on the calling thread with every parallel region inside it run serially. Used by threads that are already
+	 * part of a larger parallel workload, so they do not compete for the shared pool.
+	 */
+	public static void run_serial(Runnable work) {
+		boolean outer_nested = nested.get();
+		nested.set(true);
+		try {
+			work.run();
+		} finally {
+			nested.set(outer_nested);
+		}
+	}
+
+	/**
+	 * Runs work with a deadline. Parallel regions started by the work stop at the next checkpoint once the deadline has
+	 * passed and throw a CancellationException. Nested deadlines can only shorten the outer one.
+	 */
+	public static <T> T with_deadline(long timeout, TimeUnit unit, Supplier<T> work) {
+		Region outer = region.get();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if(outer != null && outer.deadline != Long.MAX_VALUE && outer.deadline - deadline < 0) deadline = outer.deadline;
+		region.set(new Region(outer, deadline));
+		try {
+			return work.get();
+		} finally {
+			region.set(outer);
+		}
+	}
+
+	/**
+	 * Runs work with a deadline
+	 */
+	public static void with_deadline(long timeout, TimeUnit unit, Runnable work) {
+		with_deadline(timeout, unit, () -> {
+			work.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Cooperative cancellation point for long-running units. Throws a CancellationException if the thread was
+	 * interrupted, the deadline of the current call has passed, or another unit of the same region failed.
+	 */
+	public static void checkpoint() {
+		if(Thread.currentThread().isInterrupted()) throw new CancellationException("Interrupted");
+		Region current = region.get();
+		if(current != null) current.check();
+	}
+
+	/**
+	 * Runs all units and waits for them to finish. The first unit runs on the calling thread. If any unit fails, the
+	 * others stop at their next checkpoint and the first failure is rethrown on the calling thread once every unit has
+	 * stopped. Passing the deadline of the current call or interrupting the calling thread also stops the units. No unit
+	 * is still running when this returns or throws.
+	 */
+	public static void execute(Runnable... units) {
+		execute(true, units);
+	}
+
+	/**
+	 * Runs all units to completion, ignoring deadlines, interrupts and cancellation of enclosing regions. Used for regions
+	 * that write parameters, which must either not start or finish completely. Callers check for cancellation before
+	 * starting the region, and the units do not call checkpoint. 
+	 */
+	public static void execute_to_completion(Runnable... units) {
+		execute(false, units);
+	}
+
+	/**
+	 * Runs all units and waits for every one of them to finish
+	 */
+	protected static void execute(boolean cancellable, Runnable[] units) {
+		if(units.length == 0) return;
+		if(units.length == 1) {
+			if(cancellable) checkpoint();
+			units[0].run();
+			return;
+		}
+
+		Region outer = region.get();
+		Region current;
+		if(cancellable) current = new Region(outer, outer == null ? Long.MAX_VALUE : outer.deadline);
+		else current = new Region(null, Long.MAX_VALUE);
+		ExecutorService service = executor;
+		Future<?>[] futures = new Future<?>[units.length];
+		for(int unit = 1; unit < units.length; unit++) {
+			Runnable task = units[unit];
+			futures[unit] = service.submit(() -> run_nested(task, current));
+		}
+
+		region.set(current);
+		try {
+			current.check();
+			units[0].run();
+		} catch(Throwable t) {
+			current.fail(t);
+		} finally {
+			region.set(outer);
+		}
+
+		// Wait for every unit, including after a failure, so none keeps running once the caller has moved on. Units
+		// that have not started fail at their first check.
+		boolean interrupted = false;
+		for(int unit = 1; unit < units.length; unit++) {
+			while(true) {
+				try {
+					if(current.deadline == Long.MAX_VALUE || current.failure != null) {
+						futures[unit].get();
+					} else {
+						futures[unit].get(Math.max(0, current.deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+					}
+					break;
+				} catch(InterruptedException ie) {
+					interrupted = true;
+					if(cancellable) {
+						CancellationException ce = new CancellationException("Interrupted");
+						ce.initCause(ie);
+						current.fail(ce);
+					}
+				} catch(TimeoutException te) {
+					current.fail(new CancellationException("Deadline exceeded"));
+				} catch(ExecutionException ee) {
+					current.fail(ee.getCause());
+					break;
+				} catch(CancellationException ce) {
+					current.fail(ce);
+					break;
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+
+		Throwable failure = current.failure;
+		if(failure == null) return;
+		if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if(failure instanceof Error) throw (Error) failure;
+		throw new RuntimeException(failure);
+	}
+
+	/**
+	 * Submits a single task to the shared pool. Parallel regions inside the task run serially, so a pool thread never
+	 * blocks waiting on work queued behind it. The deadline of the calling thread carries over to the task.
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		Region current = region.get();
+		return executor.submit(() -> {
+			boolean outer_nested = nested.get();
+			Region outer = region.get();
+			nested.set(true);
+			region.set(current);
+			try {
+				return task.call();
+			} finally {
+				nested.set(outer_nested);
+				region.set(outer);
+			}
+		});
+	}
+
+	/**
+	 * Runs a unit on a pool thread with nested parallel regions disabled
+	 */
+	protected static void run_nested(Runnable unit, Region current) {
+		boolean outer_nested = nested.get();
+		Region outer = region.get();
+		nested.set(true);
+		region.set(current);
+		try {
+			current.check();
+			unit.run();
+		} catch(Throwable t) {
+			// Stop the other units of the region at their next checkpoint
+			current.fail(t);
+			throw t;
+		} finally {
+			nested.set(outer_nested);
+			region.set(outer);
+		}
+	}
+
+	// CANCELLATION //
+
+	protected static class Region {
+		Region parent;
+		long deadline;
+		volatile boolean cancelled;
+		volatile Throwable failure;
+		Region(Region outer, long end) {
+			parent = outer;
+			deadline = end;
+			cancelled = false;
+		}
+		synchronized void fail(Throwable t) {
+			if(failure == null) failure = t;
+			cancelled = true;
+		}
+		void check() {
+			for(Region current = this; current != null; current = current.parent) {
+				if(current.cancelled) throw new CancellationException("Cancelled");
+			}
+			if(deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+				throw new CancellationException("Deadline exceeded");
+			}
+		}
+	}
+
+}
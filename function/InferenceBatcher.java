@@ -0,0 +1,262 @@
+package apple_lib.function;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single-item forward passes from many threads into batches. A dispatcher thread waits for the first request,
+ * gathers more until the batch is full or the oldest request has waited long enough, and passes the whole batch at once.
+ * Each caller receives a future that is completed with its own output.
+ */
+public class InferenceBatcher implements AutoCloseable {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Function being served. Must not be modified while the batcher is running. */
+	protected final VectorFunction function;
+
+	/* Largest number of items passed at once */
+	protected final int max_batch_size;
+
+	/* Longest time in nanoseconds the oldest request waits for the batch to fill */
+	protected final long max_wait;
+
+	/* Pending requests */
+	protected final BlockingQueue<Request> queue;
+
+	/* Thread gathering and running batches */
+	protected final Thread dispatcher;
+
+	/* Set to false once the batcher is closed */
+	protected volatile boolean running;
+
+	/* Metrics */
+	protected final AtomicLong batch_count, item_count;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Starts the dispatcher thread.
+	 */
+	public InferenceBatcher(VectorFunction function, int max_batch_size, long max_wait, TimeUnit unit) {
+		if(max_batch_size < 1) throw new RuntimeException("Batch size must be positive");
+		if(max_wait < 0) throw new RuntimeException("Wait time must not be negative");
+		this.function = function;
+		this.max_batch_size = max_batch_size;
+		this.max_wait = unit.toNanos(max_wait);
+
+		queue = new LinkedBlockingQueue<>();
+		batch_count = new AtomicLong();
+		item_count = new AtomicLong();
+
+		running = true;
+		dispatcher = new Thread(new DispatchUnit(), "apple_lib-inference-batcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Queues a single input. The returned future is completed with the output, or exceptionally if the batch failed.
+	 */
+	public CompletableFuture<double[]> submit(double[] input) {
+		if(!running) throw new RuntimeException("Batcher is closed");
+		Request request = new Request(input);
+		queue.add(request);
+		return request.result;
+	}
+
+	/**
+	 * Queues a single input and waits for its output.
+	 */
+	public double[] pass(double[] input) {
+		return submit(input).join();
+	}
+
+	/**
+	 * Returns the number of requests waiting to be batched
+	 */
+	public int queue_depth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of batches run so far
+	 */
+	public long batch_count() {
+		return batch_count.get();
+	}
+
+	/**
+	 * Returns the number of items passed so far
+	 */
+	public long item_count() {
+		return item_count.get();
+	}
+
+	/**
+	 * Returns the average fraction of the maximum batch size that was used. Returns zero before the first batch.
+	 */
+	public double fill_ratio() {
+		long batches = batch_count.get();
+		if(batches == 0) return 0;
+		return (double) item_count.get() / (batches * max_batch_size);
+	}
+
+	/**
+	 * Stops accepting requests. Requests already queued are still passed before the dispatcher exits.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		try {
+			dispatcher.join();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+
+		// Requests that raced with closing are never passed
+		Request request;
+		while((request = queue.poll()) != null) {
+			request.result.completeExceptionally(new RuntimeException("Batcher is closed"));
+		}
+	}
+
+	/**
+	 * Passes a gathered batch and completes every future. Items of equal length are packed into the given buffer so the
+	 * layers can use their batched kernels. Every output is the same as passing its item alone, so it does not depend on
+	 * which other requests share the batch.
+	 */
+	protected void run_batch(ArrayList<Request> requests, Batch buffer) {
+		int N = requests.size();
+		int columns = requests.get(0).input.length;
+		boolean uniform = true;
+		for(Request request : requests) {
+			uniform &= request.input.length == columns;
+		}
+
+		try {
+			if(uniform) {
+				Batch inputs = new Batch(buffer.data, N, columns);
+				for(int item = 0; item < N; item++) {
+					inputs.set_row(item, requests.get(item).input, 0);
+				}
+				Batch outputs = function.infer_all(inputs);
+				for(int item = 0; item < N; item++) {
+					requests.get(item).result.complete(outputs.row(item));
+				}
+			} else {
+				double[][] inputs = new double[N][];
+				for(int item = 0; item < N; item++) {
+					inputs[item] = requests.get(item).input;
+				}
+				double[][] outputs = function.pass_each(inputs);
+				for(int item = 0; item < N; item++) {
+					requests.get(item).result.complete(outputs[item]);
+				}
+			}
+		} catch(Throwable t) {
+			for(Request request : requests) {
+				request.result.completeExceptionally(t);
+			}
+		}
+
+		batch_count.incrementAndGet();
+		item_count.addAndGet(N);
+	}
+
+	/**
+	 * Serves the inputs through batchers of several sizes from several threads and compares every output against pass.
+	 * Returns false if any output differs by more than the tolerance.
+	 */
+	public static boolean check(VectorFunction function, double[][] inputs, double tolerance) {
+		boolean valid = true;
+		for(int size : new int[] { 1, 3, inputs.length }) {
+			ArrayList<CompletableFuture<double[]>> results = new ArrayList<>();
+			try(InferenceBatcher batcher = new InferenceBatcher(function, size, 1, TimeUnit.MILLISECONDS)) {
+				Thread[] clients = new Thread[2];
+				for(int client = 0; client < clients.length; client++) {
+					int first = client;
+					clients[client] = new Thread(() -> {
+						for(int item = first; item < inputs.length; item += clients.length) {
+							CompletableFuture<double[]> result = batcher.submit(inputs[item]);
+							synchronized(results) {
+								while(results.size() <= item) results.add(null);
+								results.set(item, result);
+							}
+						}
+					});
+					clients[client].start();
+				}
+				for(Thread client : clients) {
+					client.join();
+				}
+				double error = 0;
+				for(int item = 0; item < inputs.length; item++) {
+					double[] expected = function.pass(inputs[item]), actual = results.get(item).join();
+					error = Math.max(error, Batch.max_difference(expected, actual));
+				}
+				if(!(error <= tolerance)) {
+					System.err.println(String.format("Batches of %d differ from single passes: %e", size, error));
+					valid = false;
+				}
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ie);
+			}
+		}
+		return valid;
+	}
+
+	// MULTITHREADING //
+
+	protected static class Request {
+		double[] input;
+		CompletableFuture<double[]> result;
+		long arrival;
+		Request(double[] in) {
+			input = in;
+			result = new CompletableFuture<>();
+			arrival = System.nanoTime();
+		}
+	}
+
+	protected class DispatchUnit implements Runnable {
+		@Override
+		public void run() {
+			ArrayList<Request> requests = new ArrayList<>(max_batch_size);
+			Batch buffer = new Batch(0, 0);
+			while(running || !queue.isEmpty()) {
+				try {
+					Request first = queue.poll(10, TimeUnit.MILLISECONDS);
+					if(first == null) continue;
+					requests.add(first);
+
+					// Fill the batch until it is full or the oldest request has waited long enough
+					long deadline = first.arrival + max_wait;
+					while(requests.size() < max_batch_size) {
+						long remaining = deadline - System.nanoTime();
+						Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+						if(next == null) break;
+						requests.add(next);
+					}
+				} catch(InterruptedException ie) {
+					// Pass what has been gathered, then keep serving until closed
+				}
+				if(requests.isEmpty()) continue;
+
+				int columns = requests.get(0).input.length;
+				if(buffer.data.length < requests.size() * columns) buffer = new Batch(max_batch_size, columns);
+				run_batch(requests, buffer);
+				requests.clear();
+			}
+		}
+	}
+
+}
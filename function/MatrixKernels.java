@@ -0,0 +1,181 @@
+package apple_lib.function;
+
+import java.util.Arrays;
+
+/**
+ * Cache-blocked dense matrix kernels on row-major arrays. Each kernel covers a range of output rows so callers can split
+ * the work across units without any reduction. Inner loops run over contiguous memory so they can be vectorized.
+ */
+public class MatrixKernels {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Block sizes. A block of the right matrix is reused for every output row before moving on. */
+	protected static final int INNER_BLOCK = 128, COLUMN_BLOCK = 512, ROW_BLOCK = 64;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	private MatrixKernels() {}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Accumulates left * right into rows [start, end) of the output. The left matrix is stored flat with inner columns,
+	 * the right matrix has inner rows of the given number of columns, and the output is stored flat with that many columns.
+	 */
+	public static void multiply(double[] left, double[][] right, double[] output, int inner, int columns, int start, int end) {
+		for(int inner_block = 0; inner_block < inner; inner_block += INNER_BLOCK) {
+			int inner_end = Math.min(inner_block + INNER_BLOCK, inner);
+			for(int column_block = 0; column_block < columns; column_block += COLUMN_BLOCK) {
+				int column_end = Math.min(column_block + COLUMN_BLOCK, columns);
+				for(int row = start; row < end; row++) {
+					int left_base = row * inner, output_base = row * columns;
+					int k = inner_block;
+
+					// Four rows of the right matrix per sweep so each output entry is loaded and stored once per four products
+					for(; k + 3 < inner_end; k += 4) {
+						double v0 = left[left_base + k], v1 = left[left_base + k + 1];
+						double v2 = left[left_base + k + 2], v3 = left[left_base + k + 3];
+						double[] r0 = right[k], r1 = right[k + 1], r2 = right[k + 2], r3 = right[k + 3];
+						for(int column = column_block; column < column_end; column++) {
+							output[output_base + column] += v0 * r0[column] + v1 * r1[column] + v2 * r2[column] + v3 * r3[column];
+						}
+					}
+					for(; k < inner_end; k++) {
+						double value = left[left_base + k];
+						double[] right_row = right[k];
+						for(int column = column_block; column < column_end; column++) {
+							output[output_base + column] += value * right_row[column];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Single-precision version of multiply that accumulates into a double output. Products are summed in floats over each
+	 * block of the inner dimension, and only the partial sums are added to the output, so rounding errors do not build up
+	 * over long rows. The left matrix only holds rows [start, end), starting at index zero, so callers can convert one
+	 * block of rows at a time into a small reused buffer.
+	 */
+	public static void multiply(float[] left, float[][] right, double[] output, int inner, int columns, int start, int end) {
+		float[] partial = new float[columns];
+		for(int inner_block = 0; inner_block < inner; inner_block += INNER_BLOCK) {
+			int inner_end = Math.min(inner_block + INNER_BLOCK, inner);
+			for(int column_block = 0; column_block < columns; column_block += COLUMN_BLOCK) {
+				int column_end = Math.min(column_block + COLUMN_BLOCK, columns);
+				for(int row = start; row < end; row++) {
+					int left_base = (row - start) * inner, output_base = row * columns;
+					Arrays.fill(partial, column_block, column_end, 0);
+					int k = inner_block;
+					for(; k + 3 < inner_end; k += 4) {
+						float v0 = left[left_base + k], v1 = left[left_base + k + 1];
+						float v2 = left[left_base + k + 2], v3 = left[left_base + k + 3];
+						float[] r0 = right[k], r1 = right[k + 1], r2 = right[k + 2], r3 = right[k + 3];
+						for(int column = column_block; column < column_end; column++) {
+							partial[column] += v0 * r0[column] + v1 * r1[column] + v2 * r2[column] + v3 * r3[column];
+						}
+					}
+					for(; k < inner_end; k++) {
+						float value = left[left_base + k];
+						float[] right_row = right[k];
+						for(int column = column_block; column < column_end; column++) {
+							partial[column] += value * right_row[column];
+						}
+					}
+					for(int column = column_block; column < column_end; column++) {
+						output[output_base + column] += partial[column];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes left * transpose(right) into rows [start, end) of the output. The left matrix is stored flat with inner
+	 * columns and the right matrix has one row of inner entries per output column. Every entry is a dot product of two
+	 * contiguous rows, so the right matrix never has to be transposed in memory.
+	 */
+	public static void multiply_transposed(double[] left, double[][] right, double[] output, int inner, int columns, int start, int end) {
+		for(int column_block = 0; column_block < columns; column_block += ROW_BLOCK) {
+			int column_end = Math.min(column_block + ROW_BLOCK, columns);
+			for(int row = start; row < end; row++) {
+				int left_base = row * inner, output_base = row * columns;
+				int column = column_block;
+
+				// Four dot products at once share every load from the left row
+				for(; column + 3 < column_end; column += 4) {
+					double[] r0 = right[column], r1 = right[column + 1], r2 = right[column + 2], r3 = right[column + 3];
+					double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+					for(int k = 0; k < inner; k++) {
+						double value = left[left_base + k];
+						s0 += value * r0[k];
+						s1 += value * r1[k];
+						s2 += value * r2[k];
+						s3 += value * r3[k];
+					}
+					output[output_base + column] = s0;
+					output[output_base + column + 1] = s1;
+					output[output_base + column + 2] = s2;
+					output[output_base + column + 3] = s3;
+				}
+				for(; column < column_end; column++) {
+					double[] r0 = right[column];
+					double s0 = 0;
+					for(int k = 0; k < inner; k++) {
+						s0 += left[left_base + k] * r0[k];
+					}
+					output[output_base + column] = s0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accumulates transpose(left) * right into output rows [start, end). Both inputs are stored flat with the given number
+	 * of rows. Output row k receives the sum over rows of left[row][k] times right[row]. Used for parameter gradients,
+	 * where the rows are the items of a batch.
+	 */
+	public static void multiply_left_transposed(double[] left, int left_columns, double[] right, int right_columns, int rows,
+			double[][] output, int start, int end) {
+		for(int row_block = 0; row_block < rows; row_block += ROW_BLOCK) {
+			int row_end = Math.min(row_block + ROW_BLOCK, rows);
+			for(int k = start; k < end; k++) {
+				double[] output_row = output[k];
+				int row = row_block;
+
+				// Four items per sweep so each output entry is loaded and stored once per four products
+				for(; row + 3 < row_end; row += 4) {
+					double v0 = left[row * left_columns + k], v1 = left[(row + 1) * left_columns + k];
+					double v2 = left[(row + 2) * left_columns + k], v3 = left[(row + 3) * left_columns + k];
+					int b0 = row * right_columns, b1 = b0 + right_columns, b2 = b1 + right_columns, b3 = b2 + right_columns;
+					for(int column = 0; column < right_columns; column++) {
+						output_row[column] += v0 * right[b0 + column] + v1 * right[b1 + column] + v2 * right[b2 + column]
+							+ v3 * right[b3 + column];
+					}
+				}
+				for(; row < row_end; row++) {
+					double value = left[row * left_columns + k];
+					int right_base = row * right_columns;
+					for(int column = 0; column < right_columns; column++) {
+						output_row[column] += value * right[right_base + column];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the sum of every row of a flat matrix into the output
+	 */
+	public static void sum_rows(double[] matrix, int columns, int rows, double[] output) {
+		for(int row = 0; row < rows; row++) {
+			int base = row * columns;
+			for(int column = 0; column < columns; column++) {
+				output[column] += matrix[base + column];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package apple_lib.function;
+
+/**
+ * Integer kernels for quantized layers. This class is the scalar fallback; when the jdk.incubator.vector module is
+ * available, a SIMD implementation is loaded instead.
+ */
+public class QuantizedKernels {
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/* Kernels used by quantized layers */
+	public static final QuantizedKernels instance = load("apple_lib.function.VectorQuantizedKernels", new QuantizedKernels());
+
+	/**
+	 * Loads the named SIMD kernels if the vector module is present and they have not been disabled through the
+	 * apple_lib.simd system property. Otherwise, returns the given scalar kernels.
+	 */
+	protected static QuantizedKernels load(String name, QuantizedKernels fallback) {
+		if(!Boolean.parseBoolean(System.getProperty("apple_lib.simd", "true"))) return fallback;
+		if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return fallback;
+		try {
+			Class<?> kernels = Class.forName(name);
+			return (QuantizedKernels) kernels.getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e) {
+			return fallback;
+		}
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns true if the kernels use SIMD instructions
+	 */
+	public boolean is_vectorized() {
+		return false;
+	}
+
+	/**
+	 * Dot product of two runs of signed bytes, accumulated in 32-bit integers
+	 */
+	public int dot(byte[] left, int left_offset, byte[] right, int right_offset, int length) {
+		int sum = 0;
+		for(int i = 0; i < length; i++) {
+			sum += left[left_offset + i] * right[right_offset + i];
+		}
+		return sum;
+	}
+
+}
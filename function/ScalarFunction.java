@@ -1,17 +1,46 @@
 package apple_lib.function;
 
+import java.util.Arrays;
+
 /**
  * Subclass of a vector function. Allows elementwise operations to be defined more easily. 
  */
 public abstract class ScalarFunction extends VectorFunction {
 
+	/* Whether the common functions use approximations instead of exponentials */
+	protected static boolean approximate = false;
+
+	/**
+	 * Switches logistic, tanh, softplus and swish between exact evaluation and the approximations defined in
+	 * ApproximateActivationKernels. Affects every network that uses these functions. 
+	 */
+	public static void set_approximate(boolean enabled) {
+		approximate = enabled;
+	}
+
+	/**
+	 * Returns true if the approximate mode is enabled
+	 */
+	public static boolean is_approximate() {
+		return approximate;
+	}
+
+	/**
+	 * Kernels for functions that support the approximate mode
+	 */
+	protected static ActivationKernels kernels() {
+		return approximate ? ApproximateActivationKernels.instance : ActivationKernels.instance;
+	}
+
 	@Override
 	public double[] pass(double[] input) {
-		double[] out = new double[input.length];
-		for(int i = 0; i < out.length; i++) {
-			out[i] = pass(input[i]);
-		}
-		return out;
+		return pass(input, new double[input.length]);
+	}
+
+	@Override
+	public double[] pass(double[] input, double[] output) {
+		pass_range(input, output, 0, input.length);
+		return output;
 	}
 
 	@Override
@@ -23,6 +52,79 @@ public abstract class ScalarFunction extends VectorFunction {
 		return out;
 	}
 
+	@Override
+	public double[] vjp(double[] input, double[] upstream) {
+		double[] out = new double[input.length];
+		vjp_range(input, upstream, out, 0, out.length);
+		return out;
+	}
+
+	@Override
+	public double[][] vjp(double[] input, double[][] upstream) {
+		// Evaluate the diagonal once and scale every row by it
+		double[] ones = new double[input.length];
+		Arrays.fill(ones, 1);
+		double[] diagonal = vjp(input, ones);
+		double[][] output = new double[upstream.length][input.length];
+		for(int row = 0; row < upstream.length; row++) {
+			for(int i = 0; i < input.length; i++) {
+				output[row][i] = upstream[row][i] * diagonal[i];
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public double[] jvp(double[] input, double[] tangent) {
+		// The Jacobian is diagonal
+		return vjp(input, tangent);
+	}
+
+	@Override
+	public int output_size(int input_size) {
+		return input_size;
+	}
+
+	@Override
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		if(!inputs.is_contiguous() || !outputs.is_contiguous()) return super.pass_all(inputs, outputs);
+		int N = inputs.rows * inputs.columns;
+		int thread_count = ComputePool.thread_count(inputs.rows);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			// Element counts can be large enough for the products to overflow an int
+			int start = (int) ((long) N * thread / thread_count);
+			int end = (int) ((long) N * (thread + 1) / thread_count);
+
+			units[thread] = new ElementwiseUnit(inputs.data, null, outputs.data, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	@Override
+	public Batch vjp_all(Batch inputs, Batch upstream, Batch outputs) {
+		if(!inputs.is_contiguous() || !upstream.is_contiguous() || !outputs.is_contiguous()) {
+			return super.vjp_all(inputs, upstream, outputs);
+		}
+		int N = inputs.rows * inputs.columns;
+		int thread_count = ComputePool.thread_count(inputs.rows);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			// Element counts can be large enough for the products to overflow an int
+			int start = (int) ((long) N * thread / thread_count);
+			int end = (int) ((long) N * (thread + 1) / thread_count);
+
+			units[thread] = new ElementwiseUnit(inputs.data, upstream.data, outputs.data, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
 	/**
 	 * Feed forward
 	 */
@@ -33,6 +135,48 @@ public abstract class ScalarFunction extends VectorFunction {
 	 */
 	public abstract double backpropagate(double input);
 
+	/**
+	 * Feeds forward every element in the range [start, end). The common functions override this with bulk kernels. 
+	 */
+	public void pass_range(double[] input, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = pass(input[i]);
+		}
+	}
+
+	/**
+	 * Multiplies the upstream derivative by the derivative at every element in the range [start, end). The common
+	 * functions override this with bulk kernels. 
+	 */
+	public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+		for(int i = start; i < end; i++) {
+			output[i] = upstream[i] * backpropagate(input[i]);
+		}
+	}
+
+	////////////////////////////////////////////////////// MULTITHREADING //////////////////////////////////////////////////////
+
+	/* Feeds forward when no upstream derivative is given. Otherwise, calculates the vector-Jacobian product. */
+	protected class ElementwiseUnit implements Runnable {
+		double[] inputs, upstream, outputs;
+		int start, stop;
+		ElementwiseUnit(double[] in, double[] deriv, double[] out, int begin, int end) {
+			inputs = in;
+			upstream = deriv;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			if(upstream == null) {
+				pass_range(inputs, outputs, start, stop);
+			} else {
+				vjp_range(inputs, upstream, outputs, start, stop);
+			}
+		}
+	}
+
 	///////////////////////////////////////////////////// COMMON FUNCTIONS /////////////////////////////////////////////////////
 
 	/* Rectified Linear Unit */
@@ -46,43 +190,65 @@ public abstract class ScalarFunction extends VectorFunction {
 		public double backpropagate(double input) {
 			return input > 0 ? 1 : 0;
 		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			ActivationKernels.instance.relu(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			ActivationKernels.instance.relu_vjp(input, upstream, output, start, end);
+		}
 	};
 
 	/* Softplus function */
 	public final static ScalarFunction softplus = new ScalarFunction() {
 		@Override
 		public double pass(double input) {
-			// Create exponential
-			double exp = Math.exp(-input);
-			// Check for unbounded value
-			return Double.isInfinite(exp) ? input : Math.log(1 + exp);
+			if(approximate) return ApproximateActivationKernels.softplus(input);
+			// log(1 + exp(x)) rearranged so the exponential never overflows
+			return (input > 0 ? input : 0) + Math.log1p(Math.exp(-Math.abs(input)));
 		}
 		@Override
 		public double backpropagate(double input) {
 			return logistic.pass(input);
 		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			kernels().softplus(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			kernels().softplus_vjp(input, upstream, output, start, end);
+		}
 	};
 
 	/* Hyperbolic tangent */
 	public final static ScalarFunction tanh = new ScalarFunction() {
 		@Override
 		public double pass(double input) {
-			double pos_exp = Math.exp(input);
-			double neg_exp = Math.exp(input);
-			// Check for unbounded values
-			return Double.isInfinite(pos_exp) ? 1 : Double.isInfinite(neg_exp) ? -1 : (pos_exp - neg_exp) / (pos_exp + neg_exp);
+			if(approximate) return ApproximateActivationKernels.tanh(input);
+			return Math.tanh(input);
 		}
 		@Override
 		public double backpropagate(double input) {
 			double activation = pass(input);
 			return 1 - activation * activation;
 		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			kernels().tanh(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			kernels().tanh_vjp(input, upstream, output, start, end);
+		}
 	};
 
 	/* Logistic function */
 	public final static ScalarFunction logistic = new ScalarFunction() {
 		@Override
 		public double pass(double input) {
+			if(approximate) return ApproximateActivationKernels.logistic(input);
 			// Create exponential
 			double exp = Math.exp(-input);
 			// Check for unbounded value
@@ -93,6 +259,14 @@ public abstract class ScalarFunction extends VectorFunction {
 			double activation = pass(input);
 			return activation * (1 - activation);
 		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			kernels().logistic(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			kernels().logistic_vjp(input, upstream, output, start, end);
+		}
 	};
 
 	/* Swish function */
@@ -103,7 +277,16 @@ public abstract class ScalarFunction extends VectorFunction {
 		}
 		@Override
 		public double backpropagate(double input) {
-			return logistic.pass(input) + input * logistic.backpropagate(input);
+			double activation = logistic.pass(input);
+			return activation + input * activation * (1 - activation);
+		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			kernels().swish(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			kernels().swish_vjp(input, upstream, output, start, end);
 		}
 	};
 
@@ -117,7 +300,14 @@ public abstract class ScalarFunction extends VectorFunction {
 		public double backpropagate(double input) {
 			return input >= 0 ? 1 : 1 / (1 - input);
 		}
+		@Override
+		public void pass_range(double[] input, double[] output, int start, int end) {
+			ActivationKernels.instance.loglin(input, output, start, end);
+		}
+		@Override
+		public void vjp_range(double[] input, double[] upstream, double[] output, int start, int end) {
+			ActivationKernels.instance.loglin_vjp(input, upstream, output, start, end);
+		}
 	};
 
 }
-
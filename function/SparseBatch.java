@@ -0,0 +1,123 @@
+package apple_lib.function;
+
+/**
+ * Batch of mostly-zero vectors in compressed sparse row format. Only the non-zero entries of each row are stored, as pairs
+ * of column indices and values. The entries of row r are stored at positions [row_start[r], row_start[r + 1]). Used for
+ * one-hot and bag-of-features inputs, where layers can skip every zero entry.
+ */
+public class SparseBatch {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Sizes */
+	public final int rows, columns;
+
+	/* Position of the first entry of every row, followed by the total number of entries */
+	public final int[] row_start;
+
+	/* Column index and value of every entry */
+	public final int[] indices;
+	public final double[] values;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Wraps existing arrays. Indices must lie within the number of columns.
+	 */
+	public SparseBatch(int columns, int[] row_start, int[] indices, double[] values) {
+		if(row_start.length == 0 || row_start[0] != 0) throw new RuntimeException("Row starts must begin at zero");
+		if(indices.length != values.length || row_start[row_start.length - 1] != indices.length) {
+			throw new RuntimeException("Row starts do not match the number of entries");
+		}
+		for(int index : indices) {
+			if(index < 0 || index >= columns) throw new RuntimeException("Index " + index + " is out of bounds");
+		}
+		this.rows = row_start.length - 1;
+		this.columns = columns;
+		this.row_start = row_start;
+		this.indices = indices;
+		this.values = values;
+	}
+
+	////////////////////////////////////////////////////////// STATIC //////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a batch of one-hot rows. Row r has a one in column hot[r].
+	 */
+	public static SparseBatch one_hot(int[] hot, int columns) {
+		int[] row_start = new int[hot.length + 1];
+		double[] values = new double[hot.length];
+		for(int row = 0; row < hot.length; row++) {
+			row_start[row + 1] = row + 1;
+			values[row] = 1;
+		}
+		return new SparseBatch(columns, row_start, hot.clone(), values);
+	}
+
+	/**
+	 * Creates a batch from the index and value pairs of every row
+	 */
+	public static SparseBatch of(int[][] indices, double[][] values, int columns) {
+		int[] row_start = new int[indices.length + 1];
+		for(int row = 0; row < indices.length; row++) {
+			if(indices[row].length != values[row].length) throw new RuntimeException("Indices and values have different lengths");
+			row_start[row + 1] = row_start[row] + indices[row].length;
+		}
+		int[] flat_indices = new int[row_start[indices.length]];
+		double[] flat_values = new double[row_start[indices.length]];
+		for(int row = 0; row < indices.length; row++) {
+			System.arraycopy(indices[row], 0, flat_indices, row_start[row], indices[row].length);
+			System.arraycopy(values[row], 0, flat_values, row_start[row], values[row].length);
+		}
+		return new SparseBatch(columns, row_start, flat_indices, flat_values);
+	}
+
+	/**
+	 * Stores the non-zero entries of a dense batch
+	 */
+	public static SparseBatch of(Batch dense) {
+		int[] row_start = new int[dense.rows + 1];
+		for(int row = 0; row < dense.rows; row++) {
+			int count = 0;
+			for(int column = 0; column < dense.columns; column++) {
+				if(dense.get(row, column) != 0) count++;
+			}
+			row_start[row + 1] = row_start[row] + count;
+		}
+		int[] indices = new int[row_start[dense.rows]];
+		double[] values = new double[row_start[dense.rows]];
+		int entry = 0;
+		for(int row = 0; row < dense.rows; row++) {
+			for(int column = 0; column < dense.columns; column++) {
+				double value = dense.get(row, column);
+				if(value == 0) continue;
+				indices[entry] = column;
+				values[entry++] = value;
+			}
+		}
+		return new SparseBatch(dense.columns, row_start, indices, values);
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the number of stored entries
+	 */
+	public int nonzeros() {
+		return indices.length;
+	}
+
+	/**
+	 * Copies the batch into a dense row-major batch. Repeated indices within a row are summed.
+	 */
+	public Batch to_batch() {
+		Batch dense = new Batch(rows, columns);
+		for(int row = 0; row < rows; row++) {
+			for(int entry = row_start[row]; entry < row_start[row + 1]; entry++) {
+				dense.data[row * columns + indices[entry]] += values[entry];
+			}
+		}
+		return dense;
+	}
+
+}
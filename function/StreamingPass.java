@@ -0,0 +1,151 @@
+package apple_lib.function;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Lazily passes a stream of inputs in chunks. Chunks are passed in parallel on the shared pool, but at most a fixed number
+ * are in flight at once, so memory stays bounded no matter how long the input is. Outputs are returned in input order.
+ */
+public class StreamingPass implements Iterator<double[]> {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Function being passed */
+	protected final VectorFunction function;
+
+	/* Source of inputs. Only read from the consuming thread. */
+	protected final Iterator<double[]> inputs;
+
+	/* Number of items per chunk and number of chunks allowed in flight */
+	protected final int chunk_size, max_in_flight;
+
+	/* Chunks in input order */
+	protected final ArrayDeque<Future<double[][]>> in_flight;
+
+	/* Chunk currently being returned and the position within it */
+	protected double[][] current;
+	protected int position;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Nothing is read from the inputs until the first output is requested.
+	 */
+	public StreamingPass(VectorFunction function, Iterator<double[]> inputs, int chunk_size, int max_in_flight) {
+		if(chunk_size < 1 || max_in_flight < 1) throw new RuntimeException("Chunk size and in-flight limit must be positive");
+		this.function = function;
+		this.inputs = inputs;
+		this.chunk_size = chunk_size;
+		this.max_in_flight = max_in_flight;
+		in_flight = new ArrayDeque<>();
+		current = new double[0][];
+		position = 0;
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public boolean hasNext() {
+		if(position < current.length) return true;
+		fill();
+		while(!in_flight.isEmpty()) {
+			current = await(in_flight.poll());
+			position = 0;
+			fill();
+			if(current.length > 0) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public double[] next() {
+		if(!hasNext()) throw new NoSuchElementException();
+		double[] output = current[position];
+		current[position++] = null;
+		return output;
+	}
+
+	/**
+	 * Cancels every chunk still in flight. Used when the consumer stops early.
+	 */
+	public void cancel() {
+		for(Future<double[][]> chunk : in_flight) {
+			chunk.cancel(true);
+		}
+		in_flight.clear();
+	}
+
+	/**
+	 * Reads and submits chunks until the in-flight limit is reached or the inputs run out
+	 */
+	protected void fill() {
+		while(in_flight.size() < max_in_flight && inputs.hasNext()) {
+			double[][] chunk = new double[chunk_size][];
+			int size = 0;
+			while(size < chunk_size && inputs.hasNext()) {
+				chunk[size++] = inputs.next();
+			}
+			double[][] items = size == chunk_size ? chunk : Arrays.copyOf(chunk, size);
+			in_flight.add(ComputePool.submit(() -> pass_chunk(items)));
+		}
+	}
+
+	/**
+	 * Passes one chunk. Items of equal length are packed into a batch so the layers can use their batched kernels. Every
+	 * output is the same as passing its item alone, so outputs do not depend on the chunk size.
+	 */
+	protected double[][] pass_chunk(double[][] items) {
+		int columns = items[0].length;
+		for(double[] item : items) {
+			if(item.length != columns) return function.pass_each(items);
+		}
+		return function.infer_all(Batch.of(items)).to_array();
+	}
+
+	/**
+	 * Streams the inputs with several chunk sizes and compares every output against pass. Returns false if any output
+	 * differs by more than the tolerance.
+	 */
+	public static boolean check(VectorFunction function, double[][] inputs, double tolerance) {
+		boolean valid = true;
+		for(int size : new int[] { 1, 7, inputs.length }) {
+			StreamingPass outputs = new StreamingPass(function, Arrays.asList(inputs).iterator(), size, 2);
+			double error = 0;
+			int count = 0;
+			while(outputs.hasNext()) {
+				double[] actual = outputs.next(), expected = function.pass(inputs[count++]);
+				error = Math.max(error, Batch.max_difference(expected, actual));
+			}
+			if(count != inputs.length || !(error <= tolerance)) {
+				System.err.println(String.format("Chunks of %d differ from single passes: %e", size, error));
+				valid = false;
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Waits for a chunk. Failures are rethrown on the consuming thread.
+	 */
+	protected double[][] await(Future<double[][]> chunk) {
+		try {
+			return chunk.get();
+		} catch(InterruptedException ie) {
+			cancel();
+			Thread.currentThread().interrupt();
+			CancellationException ce = new CancellationException("Interrupted");
+			ce.initCause(ie);
+			throw ce;
+		} catch(ExecutionException ee) {
+			cancel();
+			throw new RuntimeException(ee.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package apple_lib.function;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD activation kernels built on the incubating vector API. Only loaded through ActivationKernels when the
+ * jdk.incubator.vector module is present. Leftover elements that do not fill a full vector use the scalar kernels.
+ */
+class VectorActivationKernels extends ActivationKernels {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Preferred vector shape for the current hardware */
+	protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	protected static final DoubleVector ONE = DoubleVector.broadcast(SPECIES, 1);
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public boolean is_vectorized() {
+		return true;
+	}
+
+	/**
+	 * Returns the end of the range that can be covered by full vectors
+	 */
+	protected static int bound(int start, int end) {
+		return start + SPECIES.loopBound(end - start);
+	}
+
+	/**
+	 * Logistic function of each lane
+	 */
+	protected static DoubleVector sigmoid(DoubleVector x) {
+		return ONE.div(x.neg().lanewise(VectorOperators.EXP).add(1));
+	}
+
+	@Override
+	public void relu(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, input, i).max(0).intoArray(output, i);
+		}
+		super.relu(input, output, i, end);
+	}
+
+	@Override
+	public void relu_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		DoubleVector zero = DoubleVector.zero(SPECIES);
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			VectorMask<Double> positive = DoubleVector.fromArray(SPECIES, input, i).compare(VectorOperators.GT, 0);
+			zero.blend(DoubleVector.fromArray(SPECIES, upstream, i), positive).intoArray(output, i);
+		}
+		super.relu_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void logistic(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			sigmoid(DoubleVector.fromArray(SPECIES, input, i)).intoArray(output, i);
+		}
+		super.logistic(input, output, i, end);
+	}
+
+	@Override
+	public void logistic_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = sigmoid(DoubleVector.fromArray(SPECIES, input, i));
+			DoubleVector deriv = activation.mul(activation.neg().add(1));
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.logistic_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void tanh(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, input, i).lanewise(VectorOperators.TANH).intoArray(output, i);
+		}
+		super.tanh(input, output, i, end);
+	}
+
+	@Override
+	public void tanh_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = DoubleVector.fromArray(SPECIES, input, i).lanewise(VectorOperators.TANH);
+			DoubleVector deriv = activation.mul(activation).neg().add(1);
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.tanh_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void softplus(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			DoubleVector tail = x.abs().neg().lanewise(VectorOperators.EXP).lanewise(VectorOperators.LOG1P);
+			x.max(0).add(tail).intoArray(output, i);
+		}
+		super.softplus(input, output, i, end);
+	}
+
+	@Override
+	public void softplus_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = sigmoid(DoubleVector.fromArray(SPECIES, input, i));
+			activation.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.softplus_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void swish(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			sigmoid(x).mul(x).intoArray(output, i);
+		}
+		super.swish(input, output, i, end);
+	}
+
+	@Override
+	public void swish_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			DoubleVector activation = sigmoid(x);
+			// s + x s (1 - s)
+			DoubleVector deriv = x.mul(activation).mul(activation.neg().add(1)).add(activation);
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.swish_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void loglin(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			VectorMask<Double> negative = x.compare(VectorOperators.LT, 0);
+			// Clamp before the logarithm so positive lanes never produce NaN
+			DoubleVector log = x.min(0).neg().lanewise(VectorOperators.LOG1P).neg();
+			x.blend(log, negative).intoArray(output, i);
+		}
+		super.loglin(input, output, i, end);
+	}
+
+	@Override
+	public void loglin_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			// 1 / (1 - min(x, 0)) is one for non-negative inputs
+			DoubleVector deriv = ONE.div(x.min(0).neg().add(1));
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.loglin_vjp(input, upstream, output, i, end);
+	}
+
+}
+
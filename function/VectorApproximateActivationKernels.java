@@ -0,0 +1,155 @@
+package apple_lib.function;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of the approximate activation kernels. Only loaded through ApproximateActivationKernels when the
+ * jdk.incubator.vector module is present. Leftover elements that do not fill a full vector use the scalar kernels.
+ */
+class VectorApproximateActivationKernels extends ApproximateActivationKernels {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Preferred vector shape for the current hardware */
+	protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public boolean is_vectorized() {
+		return true;
+	}
+
+	/**
+	 * Returns the end of the range that can be covered by full vectors
+	 */
+	protected static int bound(int start, int end) {
+		return start + SPECIES.loopBound(end - start);
+	}
+
+	/**
+	 * Approximate hyperbolic tangent of each lane
+	 */
+	protected static DoubleVector tanh(DoubleVector x) {
+		DoubleVector clamped = x.max(-SATURATION).min(SATURATION);
+		DoubleVector x2 = clamped.mul(clamped);
+		DoubleVector numerator = x2.fma(P5, P4).fma(x2, DoubleVector.broadcast(SPECIES, P3));
+		numerator = numerator.fma(x2, DoubleVector.broadcast(SPECIES, P2)).fma(x2, DoubleVector.broadcast(SPECIES, P1));
+		numerator = numerator.fma(x2, DoubleVector.broadcast(SPECIES, P0)).mul(clamped);
+		DoubleVector denominator = x2.add(Q5).fma(x2, DoubleVector.broadcast(SPECIES, Q4));
+		denominator = denominator.fma(x2, DoubleVector.broadcast(SPECIES, Q3)).fma(x2, DoubleVector.broadcast(SPECIES, Q2));
+		denominator = denominator.fma(x2, DoubleVector.broadcast(SPECIES, Q1)).fma(x2, DoubleVector.broadcast(SPECIES, Q0));
+		DoubleVector result = numerator.div(denominator);
+
+		// Saturate to exactly one
+		VectorMask<Double> saturated = x.abs().compare(VectorOperators.GE, SATURATION);
+		return result.blend(DoubleVector.broadcast(SPECIES, 1).blend(-1, x.compare(VectorOperators.LT, 0)), saturated);
+	}
+
+	/**
+	 * Approximate logistic function of each lane
+	 */
+	protected static DoubleVector logistic(DoubleVector x) {
+		return tanh(x.mul(0.5)).fma(0.5, 0.5);
+	}
+
+	/**
+	 * Approximate log(1 + u) of each lane for u in [0, 1]
+	 */
+	protected static DoubleVector log1p(DoubleVector u) {
+		DoubleVector z = u.div(u.add(2));
+		DoubleVector z2 = z.mul(z);
+		DoubleVector series = z2.fma(1 / 11.0, 1 / 9.0).fma(z2, DoubleVector.broadcast(SPECIES, 1 / 7.0));
+		series = series.fma(z2, DoubleVector.broadcast(SPECIES, 1 / 5.0)).fma(z2, DoubleVector.broadcast(SPECIES, 1 / 3.0));
+		return series.fma(z2, DoubleVector.broadcast(SPECIES, 1)).mul(z).mul(2);
+	}
+
+	@Override
+	public void logistic(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			logistic(DoubleVector.fromArray(SPECIES, input, i)).intoArray(output, i);
+		}
+		super.logistic(input, output, i, end);
+	}
+
+	@Override
+	public void logistic_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = logistic(DoubleVector.fromArray(SPECIES, input, i));
+			DoubleVector deriv = activation.mul(activation.neg().add(1));
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.logistic_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void tanh(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			tanh(DoubleVector.fromArray(SPECIES, input, i)).intoArray(output, i);
+		}
+		super.tanh(input, output, i, end);
+	}
+
+	@Override
+	public void tanh_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = tanh(DoubleVector.fromArray(SPECIES, input, i));
+			DoubleVector deriv = activation.mul(activation).neg().add(1);
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.tanh_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void softplus(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			DoubleVector upper = logistic(x.abs());
+			DoubleVector tail = log1p(upper.neg().add(1).div(upper));
+			x.max(0).add(tail).intoArray(output, i);
+		}
+		super.softplus(input, output, i, end);
+	}
+
+	@Override
+	public void softplus_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector activation = logistic(DoubleVector.fromArray(SPECIES, input, i));
+			activation.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.softplus_vjp(input, upstream, output, i, end);
+	}
+
+	@Override
+	public void swish(double[] input, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			logistic(x).mul(x).intoArray(output, i);
+		}
+		super.swish(input, output, i, end);
+	}
+
+	@Override
+	public void swish_vjp(double[] input, double[] upstream, double[] output, int start, int end) {
+		int i = start, bound = bound(start, end);
+		for(; i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+			DoubleVector activation = logistic(x);
+			// s + x s (1 - s)
+			DoubleVector deriv = x.mul(activation).mul(activation.neg().add(1)).add(activation);
+			deriv.mul(DoubleVector.fromArray(SPECIES, upstream, i)).intoArray(output, i);
+		}
+		super.swish_vjp(input, upstream, output, i, end);
+	}
+
+}
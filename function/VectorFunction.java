@@ -1,47 +1,150 @@
 package apple_lib.function;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents a function mapping an n-dimensional input to an m-dimensional output. 
  */
 public abstract class VectorFunction {
 
+	/* Rows of the right matrix handled at once by the blocked matrix multiplication */
+	protected static final int MULTIPLY_BLOCK = 64;
+
 	/**
 	 * Feed forward
 	 */
 	public abstract double[] pass(double[] input);
 
+	/**
+	 * Feed forward into a caller-provided array. Returns the output array. The output must not be the input array. The
+	 * default implementation allocates; subclasses should override this to write directly. 
+	 */
+	public double[] pass(double[] input, double[] output) {
+		double[] result = pass(input);
+		System.arraycopy(result, 0, output, 0, result.length);
+		return output;
+	}
+
+	/**
+	 * Feed forward into a caller-provided array using preallocated scratch space. The workspace must come from
+	 * create_workspace. 
+	 */
+	public double[] pass(double[] input, double[] output, Workspace workspace) {
+		return pass(input, output);
+	}
+
+	/**
+	 * Creates the scratch space needed for an allocation-free forward pass. Returns null if none is needed. 
+	 */
+	public Workspace create_workspace(int input_size) {
+		return null;
+	}
+
 	/**
 	 * Backpropagate. Derivative of output i with respect to output j is given by output[i][j]. 
 	 */
 	public abstract double[][] backpropagate(double[] input);
 
+	/**
+	 * Vector-Jacobian product. Takes the derivative of some value with respect to the outputs and returns the derivative
+	 * with respect to the inputs. The default implementation builds the full Jacobian; subclasses should override this
+	 * with a direct calculation. 
+	 */
+	public double[] vjp(double[] input, double[] upstream) {
+		double[][] jacobian = backpropagate(input);
+		double[] output = new double[input.length];
+		for(int out = 0; out < upstream.length; out++) {
+			for(int in = 0; in < output.length; in++) {
+				output[in] += jacobian[out][in] * upstream[out];
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Jacobian-vector product. Takes a direction in input space and returns the directional derivative of the outputs. The
+	 * default implementation builds the full Jacobian; subclasses should override this with a direct calculation. 
+	 */
+	public double[] jvp(double[] input, double[] tangent) {
+		double[][] jacobian = backpropagate(input);
+		double[] output = new double[jacobian.length];
+		for(int out = 0; out < output.length; out++) {
+			double total = 0;
+			for(int in = 0; in < tangent.length; in++) {
+				total += jacobian[out][in] * tangent[in];
+			}
+			output[out] = total;
+		}
+		return output;
+	}
+
+	/**
+	 * Vector-Jacobian products for several upstream vectors at the same input point. Row i of the result is the product for
+	 * row i of the upstream matrix. The default implementation builds the Jacobian once and multiplies by it.
+	 */
+	public double[][] vjp(double[] input, double[][] upstream) {
+		return multiply(upstream, backpropagate(input));
+	}
+
+	/**
+	 * Cache-blocked matrix multiplication. Rows of the right matrix are streamed in blocks so they stay in cache while
+	 * every row of the left matrix is accumulated.
+	 */
+	public static double[][] multiply(double[][] left, double[][] right) {
+		int rows = left.length, inner = right.length;
+		int columns = inner == 0 ? 0 : right[0].length;
+		double[][] output = new double[rows][columns];
+		for(int block = 0; block < inner; block += MULTIPLY_BLOCK) {
+			int block_end = Math.min(block + MULTIPLY_BLOCK, inner);
+			for(int row = 0; row < rows; row++) {
+				double[] left_row = left[row], output_row = output[row];
+				for(int k = block; k < block_end; k++) {
+					double value = left_row[k];
+					if(value == 0) continue;
+					double[] right_row = right[k];
+					for(int column = 0; column < columns; column++) {
+						output_row[column] += value * right_row[column];
+					}
+				}
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Determines the size of the output given the size of the input. The default implementation passes a zero vector. 
+	 */
+	public int output_size(int input_size) {
+		return pass(new double[input_size]).length;
+	}
+
 	/**
 	 * Passes multiple inputs at the same time. 
 	 */
 	public double[][] pass_all(double[][] inputs) {
-		int thread_count = Math.min(inputs.length, Runtime.getRuntime().availableProcessors());
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
+		return pass_each(inputs);
+	}
 
+	/**
+	 * Passes every input on its own with pass, splitting the inputs across threads. Inputs may have different lengths. 
+	 */
+	protected double[][] pass_each(double[][] inputs) {
 		int N = inputs.length;
+		int thread_count = ComputePool.thread_count(N);
+
 		double[][] outputs = new double[N][];
+		Runnable[] units = new Runnable[thread_count];
 		for(int thread = 0; thread < thread_count; thread++) {
 			int start = (N * thread) / thread_count;
 			int end = (N * (thread + 1)) / thread_count;
 
-			ForwardPassUnit unit = new ForwardPassUnit(inputs, outputs, start, end);
-			service.execute(unit);
-		}
-
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+			units[thread] = new ForwardPassUnit(inputs, outputs, start, end);
 		}
+		ComputePool.execute(units);
 
 		return outputs;
 	}
@@ -50,29 +153,156 @@ public abstract class VectorFunction {
 	 * Determines the derivative at multiple input points. 
 	 */
 	public double[][][] backpropagate_all(double[][] inputs) {
-		int thread_count = Math.min(inputs.length, Runtime.getRuntime().availableProcessors());
-		ExecutorService service = Executors.newFixedThreadPool(thread_count);
-
 		int N = inputs.length;
+		int thread_count = ComputePool.thread_count(N);
+
 		double[][][] outputs = new double[N][][];
+		Runnable[] units = new Runnable[thread_count];
 		for(int thread = 0; thread < thread_count; thread++) {
 			int start = (N * thread) / thread_count;
 			int end = (N * (thread + 1)) / thread_count;
 
-			BackwardPassUnit unit = new BackwardPassUnit(inputs, outputs, start, end);
-			service.execute(unit);
+			units[thread] = new BackwardPassUnit(inputs, outputs, start, end);
 		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Determines vector-Jacobian products at multiple input points. 
+	 */
+	public double[][] vjp_all(double[][] inputs, double[][] upstream) {
+		int N = inputs.length;
+		int thread_count = ComputePool.thread_count(N);
 
-		service.shutdown();
-		try {
-			service.awaitTermination(256, TimeUnit.DAYS);
-		} catch(InterruptedException ie) {
-			throw new RuntimeException();
+		double[][] outputs = new double[N][];
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new VectorJacobianUnit(inputs, upstream, outputs, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Determines Jacobian-vector products at multiple input points. 
+	 */
+	public double[][] jvp_all(double[][] inputs, double[][] tangents) {
+		int N = inputs.length;
+		int thread_count = ComputePool.thread_count(N);
+
+		double[][] outputs = new double[N][];
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new JacobianVectorUnit(inputs, tangents, outputs, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Passes a contiguous batch of inputs. 
+	 */
+	public Batch pass_all(Batch inputs) {
+		return pass_all(inputs, new Batch(inputs.rows, output_size(inputs.columns)));
+	}
+
+	/**
+	 * Passes a contiguous batch of inputs into a caller-provided batch. Returns the output batch. 
+	 */
+	public Batch pass_all(Batch inputs, Batch outputs) {
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new BatchForwardPassUnit(inputs, outputs, start, end);
 		}
+		ComputePool.execute(units);
 
 		return outputs;
 	}
 
+	/**
+	 * Passes a contiguous batch with the same result as passing every item on its own. Used for serving, where an output
+	 * must not depend on the other items of its batch. 
+	 */
+	public Batch infer_all(Batch inputs) {
+		return infer_all(inputs, new Batch(inputs.rows, output_size(inputs.columns)));
+	}
+
+	/**
+	 * Passes a contiguous batch into a caller-provided batch with the same result as passing every item on its own. The
+	 * same as pass_all, except for layers that normalize over the batch and functions that contain them. 
+	 */
+	public Batch infer_all(Batch inputs, Batch outputs) {
+		return pass_all(inputs, outputs);
+	}
+
+	/**
+	 * Passes a batch of sparse inputs. Functions that can skip zero entries override this. Others pass a dense copy. 
+	 */
+	public Batch pass_all(SparseBatch inputs) {
+		return pass_all(inputs.to_batch());
+	}
+
+	/**
+	 * Determines vector-Jacobian products for a contiguous batch of inputs. 
+	 */
+	public Batch vjp_all(Batch inputs, Batch upstream) {
+		return vjp_all(inputs, upstream, new Batch(inputs.rows, inputs.columns));
+	}
+
+	/**
+	 * Determines vector-Jacobian products for a contiguous batch of inputs into a caller-provided batch. Returns the
+	 * output batch. 
+	 */
+	public Batch vjp_all(Batch inputs, Batch upstream, Batch outputs) {
+		int N = inputs.rows;
+		int thread_count = ComputePool.thread_count(N);
+
+		Runnable[] units = new Runnable[thread_count];
+		for(int thread = 0; thread < thread_count; thread++) {
+			int start = (N * thread) / thread_count;
+			int end = (N * (thread + 1)) / thread_count;
+
+			units[thread] = new BatchVectorJacobianUnit(inputs, upstream, outputs, start, end);
+		}
+		ComputePool.execute(units);
+
+		return outputs;
+	}
+
+	/**
+	 * Lazily passes a sequence of inputs. Chunks of the given size are passed in parallel with at most max_in_flight
+	 * chunks held in memory at once. Outputs are returned in input order. 
+	 */
+	public StreamingPass pass_stream(Iterator<double[]> inputs, int chunk_size, int max_in_flight) {
+		return new StreamingPass(this, inputs, chunk_size, max_in_flight);
+	}
+
+	/**
+	 * Lazily passes a stream of inputs. The returned stream is sequential and ordered. Closing it closes the input stream
+	 * and cancels any chunks still in flight. 
+	 */
+	public Stream<double[]> pass_stream(Stream<double[]> inputs, int chunk_size, int max_in_flight) {
+		StreamingPass outputs = pass_stream(inputs.iterator(), chunk_size, max_in_flight);
+		Spliterator<double[]> split = Spliterators.spliteratorUnknownSize(outputs, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(split, false).onClose(outputs::cancel).onClose(inputs::close);
+	}
+
 	////////////////////////////////////////////////////// MULTITHREADING //////////////////////////////////////////////////////
 
 	protected class ForwardPassUnit implements Runnable {
@@ -87,6 +317,7 @@ public abstract class VectorFunction {
 		@Override
 		public void run() {
 			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
 				outputs[item] = pass(inputs[item]);
 			}
 		}
@@ -105,11 +336,93 @@ public abstract class VectorFunction {
 		@Override
 		public void run() {
 			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
 				outputs[item] = backpropagate(inputs[item]);
 			}
 		}
 	}
 
+	protected class VectorJacobianUnit implements Runnable {
+		double[][] inputs, upstream, outputs;
+		int start, stop;
+		VectorJacobianUnit(double[][] in, double[][] deriv, double[][] out, int begin, int end) {
+			inputs = in;
+			upstream = deriv;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
+				outputs[item] = vjp(inputs[item], upstream[item]);
+			}
+		}
+	}
+
+	protected class JacobianVectorUnit implements Runnable {
+		double[][] inputs, tangents, outputs;
+		int start, stop;
+		JacobianVectorUnit(double[][] in, double[][] direction, double[][] out, int begin, int end) {
+			inputs = in;
+			tangents = direction;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
+				outputs[item] = jvp(inputs[item], tangents[item]);
+			}
+		}
+	}
+
+	protected class BatchForwardPassUnit implements Runnable {
+		Batch inputs, outputs;
+		int start, stop;
+		BatchForwardPassUnit(Batch in, Batch out, int begin, int end) {
+			inputs = in;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			double[] input = new double[inputs.columns];
+			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
+				inputs.get_row(item, input, 0);
+				outputs.set_row(item, pass(input), 0);
+			}
+		}
+	}
+
+	protected class BatchVectorJacobianUnit implements Runnable {
+		Batch inputs, upstream, outputs;
+		int start, stop;
+		BatchVectorJacobianUnit(Batch in, Batch deriv, Batch out, int begin, int end) {
+			inputs = in;
+			upstream = deriv;
+			outputs = out;
+			start = begin;
+			stop = end;
+		}
+		@Override
+		public void run() {
+			double[] input = new double[inputs.columns];
+			double[] deriv = new double[upstream.columns];
+			for(int item = start; item < stop; item++) {
+				ComputePool.checkpoint();
+				inputs.get_row(item, input, 0);
+				upstream.get_row(item, deriv, 0);
+				outputs.set_row(item, vjp(input, deriv), 0);
+			}
+		}
+	}
+
 	///////////////////////////////////////////////////// COMMON FUNCTIONS /////////////////////////////////////////////////////
 
 	/* Scalar functions */
@@ -129,10 +442,14 @@ public abstract class VectorFunction {
 	public final static VectorFunction softmax = new VectorFunction() {
 		@Override
 		public double[] pass(double[] input) {
+			return pass(input, new double[input.length]);
+		}
+		@Override
+		public double[] pass(double[] input, double[] output) {
 			int N = input.length;
 			
 			// If input length is zero, then output length is also zero
-			if(N == 0) return new double[N];
+			if(N == 0) return output;
 
 			// Determine maximum value
 			double max = input[0];
@@ -142,7 +459,6 @@ public abstract class VectorFunction {
 
 			// Rescale for numerical stability. Exponentiate and take sum. 
 			double sum = 0;
-			double[] output = new double[N];
 			for(int i = 0; i < N; i++) {
 				output[i] = Math.exp(input[i] - max);
 				sum += output[i];
@@ -168,6 +484,100 @@ public abstract class VectorFunction {
 			}
 			return output;
 		}
+		@Override
+		public double[][] vjp(double[] input, double[][] upstream) {
+			int N = input.length;
+			double[] activation = pass(input);
+			double[][] output = new double[upstream.length][N];
+			for(int row = 0; row < upstream.length; row++) {
+				double dot = 0;
+				for(int i = 0; i < N; i++) {
+					dot += activation[i] * upstream[row][i];
+				}
+				for(int i = 0; i < N; i++) {
+					output[row][i] = activation[i] * (upstream[row][i] - dot);
+				}
+			}
+			return output;
+		}
+		@Override
+		public double[] jvp(double[] input, double[] tangent) {
+			// The softmax Jacobian is symmetric
+			return vjp(input, tangent);
+		}
+		@Override
+		public int output_size(int input_size) {
+			return input_size;
+		}
+		@Override
+		public Batch pass_all(Batch inputs, Batch outputs) {
+			if(!inputs.is_contiguous() || !outputs.is_contiguous()) return super.pass_all(inputs, outputs);
+			int N = inputs.rows;
+			int thread_count = ComputePool.thread_count(N);
+
+			Runnable[] units = new Runnable[thread_count];
+			for(int thread = 0; thread < thread_count; thread++) {
+				int start = (N * thread) / thread_count;
+				int end = (N * (thread + 1)) / thread_count;
+
+				units[thread] = new SoftmaxUnit(inputs.data, outputs.data, inputs.columns, start, end);
+			}
+			ComputePool.execute(units);
+
+			return outputs;
+		}
+		class SoftmaxUnit implements Runnable {
+			double[] inputs, outputs;
+			int N, start, stop;
+			SoftmaxUnit(double[] in, double[] out, int size, int begin, int end) {
+				inputs = in;
+				outputs = out;
+				N = size;
+				start = begin;
+				stop = end;
+			}
+			@Override
+			public void run() {
+				if(N == 0) return;
+				for(int item = start; item < stop; item++) {
+					int base = item * N;
+
+					// Rescale for numerical stability. Exponentiate and take sum. 
+					double max = inputs[base];
+					for(int i = 1; i < N; i++) {
+						max = inputs[base + i] > max ? inputs[base + i] : max;
+					}
+					double sum = 0;
+					for(int i = 0; i < N; i++) {
+						outputs[base + i] = Math.exp(inputs[base + i] - max);
+						sum += outputs[base + i];
+					}
+
+					// Divide entries by sum
+					for(int i = 0; i < N; i++) {
+						outputs[base + i] /= sum;
+					}
+				}
+			}
+		}
+		@Override
+		public double[] vjp(double[] input, double[] upstream) {
+			int N = input.length;
+			double[] activation = pass(input);
+
+			// Sum of yj * gj is shared by every input
+			double dot = 0;
+			for(int i = 0; i < N; i++) {
+				dot += activation[i] * upstream[i];
+			}
+
+			// yi ( gi - sum )
+			double[] output = new double[N];
+			for(int i = 0; i < N; i++) {
+				output[i] = activation[i] * (upstream[i] - dot);
+			}
+			return output;
+		}
 	};
 
 }
@@ -0,0 +1,55 @@
+package apple_lib.function;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD integer kernels built on the incubating vector API. Only loaded through QuantizedKernels when the
+ * jdk.incubator.vector module is present. Leftover elements that do not fill a full vector use the scalar kernels.
+ */
+class VectorQuantizedKernels extends QuantizedKernels {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Preferred integer shape, and the smallest byte shape holding at least as many lanes. There is no 32-bit shape, so on
+	   128-bit hardware each byte vector widens into two integer vectors. */
+	protected static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	protected static final VectorSpecies<Byte> BYTE_SPECIES = INT_SPECIES.length() <= ByteVector.SPECIES_64.length()
+		? ByteVector.SPECIES_64 : ByteVector.SPECIES_128;
+
+	/* Integer vectors per byte vector */
+	protected static final int PARTS = BYTE_SPECIES.length() / INT_SPECIES.length();
+
+	static {
+		// Makes loading fail, so the scalar kernels are used instead
+		if(PARTS < 1 || PARTS * INT_SPECIES.length() != BYTE_SPECIES.length()) {
+			throw new RuntimeException("No byte shape matches " + INT_SPECIES.length() + " integer lanes");
+		}
+	}
+
+	////////////////////////////////////////////////////////// METHODS /////////////////////////////////////////////////////////
+
+	@Override
+	public boolean is_vectorized() {
+		return true;
+	}
+
+	@Override
+	public int dot(byte[] left, int left_offset, byte[] right, int right_offset, int length) {
+		IntVector sum = IntVector.zero(INT_SPECIES);
+		int i = 0, bound = BYTE_SPECIES.loopBound(length);
+		for(; i < bound; i += BYTE_SPECIES.length()) {
+			ByteVector x = ByteVector.fromArray(BYTE_SPECIES, left, left_offset + i);
+			ByteVector y = ByteVector.fromArray(BYTE_SPECIES, right, right_offset + i);
+			for(int part = 0; part < PARTS; part++) {
+				IntVector wide_x = (IntVector) x.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+				IntVector wide_y = (IntVector) y.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+				sum = sum.add(wide_x.mul(wide_y));
+			}
+		}
+		return sum.reduceLanes(VectorOperators.ADD) + super.dot(left, left_offset + i, right, right_offset + i, length - i);
+	}
+
+}
@@ -0,0 +1,28 @@
+package apple_lib.function;
+
+/**
+ * Preallocated scratch space for a forward pass. Holds one buffer for each intermediate result and a nested workspace for
+ * each component function that needs one. A workspace may only be used by one thread at a time.
+ */
+public class Workspace {
+
+	////////////////////////////////////////////////////////// FIELDS //////////////////////////////////////////////////////////
+
+	/* Intermediate results */
+	public final double[][] buffers;
+
+	/* Workspaces of component functions. Entries may be null. */
+	public final Workspace[] children;
+
+	/////////////////////////////////////////////////////// CONSTRUCTORS ///////////////////////////////////////////////////////
+
+	/**
+	 * Basic constructor. Stores the given buffers and nested workspaces.
+	 */
+	public Workspace(double[][] buffers, Workspace[] children) {
+		this.buffers = buffers;
+		this.children = children;
+	}
+
+}
+